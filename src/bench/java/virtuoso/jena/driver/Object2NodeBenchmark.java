@@ -0,0 +1,98 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Cost of VirtGraph.Object2Node for every kind of value returned by the
+ * Virtuoso driver. Run with -prof gc to see the allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Object2NodeBenchmark {
+
+	@Param({ "iri", "bnode", "string", "typed", "lang", "integer", "short",
+			"float", "double", "decimal", "date", "timestamp", "time" })
+	public String type;
+
+	private Object value;
+
+	@Setup
+	public void setup() {
+		if (type.equals("iri"))
+			value = VirtFakeJdbc.iri("http://xmlns.com/foaf/0.1/name");
+		else if (type.equals("bnode"))
+			value = VirtFakeJdbc.bnode("b1234567");
+		else if (type.equals("string"))
+			value = VirtFakeJdbc.string("Alice in Wonderland");
+		else if (type.equals("typed"))
+			value = VirtFakeJdbc.box("2013-02-20",
+					"http://www.w3.org/2001/XMLSchema#date", null);
+		else if (type.equals("lang"))
+			value = VirtFakeJdbc.box("Alice", null, "en");
+		else if (type.equals("integer"))
+			value = Integer.valueOf(123456);
+		else if (type.equals("short"))
+			value = Short.valueOf((short) 12);
+		else if (type.equals("float"))
+			value = Float.valueOf(1.5f);
+		else if (type.equals("double"))
+			value = Double.valueOf(3.14159);
+		else if (type.equals("decimal"))
+			value = new java.math.BigDecimal("12345.678");
+		else if (type.equals("date"))
+			value = java.sql.Date.valueOf("2013-02-20");
+		else if (type.equals("timestamp"))
+			value = java.sql.Timestamp.valueOf("2013-02-20 12:06:00.123");
+		else if (type.equals("time"))
+			value = java.sql.Time.valueOf("12:06:00");
+		else
+			throw new IllegalArgumentException(type);
+	}
+
+	@Benchmark
+	public Node object2Node() {
+		return VirtGraph.Object2Node(value);
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+
+/**
+ * Per-row cost of the result iterators over a fake java.sql.ResultSet:
+ * VResultSet (execSelect), VQueryIterator (query engine) and VirtResSetIter
+ * (find). Scores are per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowExtractionBenchmark {
+
+	static final int ROWS = 10000;
+
+	static final String[] PREDICATES = { "http://xmlns.com/foaf/0.1/name",
+			"http://xmlns.com/foaf/0.1/knows",
+			"http://www.w3.org/1999/02/22-rdf-syntax-ns#type",
+			"http://xmlns.com/foaf/0.1/mbox" };
+
+	private VirtGraph graph;
+	private VirtFakeJdbc.Result select;
+	private VirtFakeJdbc.Result triples;
+
+	@Setup
+	public void setup() {
+		select = new VirtFakeJdbc.Result("s", "name", "age", "homepage");
+		triples = new VirtFakeJdbc.Result("s", "p", "o");
+		for (int i = 0; i < ROWS; i++) {
+			Object s = VirtFakeJdbc.iri("http://example.org/people/" + i);
+			Object name = VirtFakeJdbc.box("Person " + i, null, "en");
+			select.add(s, name, Integer.valueOf(i % 90),
+					VirtFakeJdbc.iri("http://example.org/home/" + (i % 100)));
+			triples.add(s, VirtFakeJdbc.iri(PREDICATES[i % PREDICATES.length]),
+					(i % 2 == 0 ? name : VirtFakeJdbc
+							.iri("http://example.org/people/" + (i + 1))));
+		}
+
+		graph = new VirtGraph("http://example.org/bench",
+				VirtFakeJdbc.dataSource(new VirtFakeJdbc.Responder() {
+					public VirtFakeJdbc.Result respond(String sql,
+							List<Object> params) throws SQLException {
+						return new VirtFakeJdbc.Result("s", "p", "o");
+					}
+				}));
+	}
+
+	@TearDown
+	public void tearDown() {
+		graph.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void vResultSet(Blackhole bh) {
+		VirtuosoQueryExecution qe = new VirtuosoQueryExecution(
+				"SELECT * WHERE { ?s ?p ?o }", graph);
+		VirtuosoQueryExecution.VResultSet rs = qe.new VResultSet(graph,
+				VirtFakeJdbc.resultSet(select));
+		while (rs.hasNext())
+			bh.consume(rs.nextBinding());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void vQueryIterator(Blackhole bh) {
+		QueryIterator it = new VirtuosoQueryEngine.VQueryIterator(graph,
+				VirtFakeJdbc.resultSet(select), null, null, null, null);
+		while (it.hasNext())
+			bh.consume(it.nextBinding());
+		it.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void vResSetIter(Blackhole bh) throws SQLException {
+		VirtResSetIter it = new VirtResSetIter(graph,
+				VirtFakeJdbc.resultSet(triples), Triple.createMatch(null,
+						null, null), graph.prepareStatement("find"));
+		while (it.hasNext())
+			bh.consume(it.next());
+		it.close();
+	}
+
+}
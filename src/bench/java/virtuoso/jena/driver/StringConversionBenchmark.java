@@ -0,0 +1,125 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+
+/**
+ * Cost of turning nodes and bindings into SPARQL text: Node2Str,
+ * escapeString, Timestamp2String and the substitution of initial bindings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringConversionBenchmark {
+
+	static final String QUERY = "PREFIX foaf: <http://xmlns.com/foaf/0.1/>\n"
+			+ "SELECT ?name ?mbox ?age WHERE {\n"
+			+ "  ?person a foaf:Person ; foaf:name ?name ; foaf:age ?age .\n"
+			+ "  OPTIONAL { ?person foaf:mbox ?mbox }\n"
+			+ "  ?person foaf:knows ?friend .\n"
+			+ "  FILTER (?age > ?minAge && lang(?name) = 'en')\n"
+			+ "} ORDER BY ?name LIMIT 100";
+
+	private Node uri;
+	private Node literal;
+	private Node typed;
+	private String text;
+	private java.sql.Timestamp timestamp;
+	private Binding binding;
+
+	@Setup
+	public void setup() {
+		uri = Node.createURI("http://example.org/people/alice");
+		literal = Node.createLiteral("Alice \"the\" explorer\nof 'Wonderland'",
+				"en", false);
+		typed = Node.createLiteral("42", null, XSDDatatype.XSDinteger);
+		text = "Line one\nLine 'two' with \"quotes\" and a \\ backslash\r\n";
+		timestamp = java.sql.Timestamp.valueOf("2013-02-20 12:06:00.123");
+
+		BindingMap b = BindingFactory.create();
+		b.add(Var.alloc("person"), uri);
+		b.add(Var.alloc("friend"),
+				Node.createURI("http://example.org/people/bob"));
+		b.add(Var.alloc("minAge"), typed);
+		binding = b;
+	}
+
+	@Benchmark
+	public String node2StrURI() {
+		return VirtGraph.Node2Str(uri);
+	}
+
+	@Benchmark
+	public String node2StrLiteral() {
+		return VirtGraph.Node2Str(literal);
+	}
+
+	@Benchmark
+	public String node2StrTyped() {
+		return VirtGraph.Node2Str(typed);
+	}
+
+	@Benchmark
+	public String escapeString() {
+		return VirtGraph.escapeString(text);
+	}
+
+	@Benchmark
+	public String timestamp2String() {
+		return VirtGraph.Timestamp2String(timestamp);
+	}
+
+	@Benchmark
+	public String substBindings() {
+		return VirtParameterizedQuery.substitute(QUERY, binding);
+	}
+
+	@Benchmark
+	public VirtParameterizedQuery parameterize() {
+		return VirtParameterizedQuery.create(QUERY, binding);
+	}
+
+}
@@ -0,0 +1,407 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import virtuoso.jdbc4.VirtuosoDataSource;
+import virtuoso.sql.ExtendedString;
+import virtuoso.sql.RdfBox;
+
+/**
+ * In-process stand-in for the Virtuoso JDBC driver. Connections, statements
+ * and result sets are dynamic proxies that hand every executed SQL text and
+ * its parameters to a Responder and replay the rows it returns.
+ */
+public class VirtFakeJdbc {
+
+	/**
+	 * Produces the result of an executed statement.
+	 */
+	public interface Responder {
+		/**
+		 * @param sql
+		 *            the executed SQL text
+		 * @param params
+		 *            the parameters of a prepared statement, by column
+		 * @return the result rows, or null for an update
+		 */
+		Result respond(String sql, List<Object> params) throws SQLException;
+	}
+
+	/**
+	 * Column labels and rows of a result set.
+	 */
+	public static class Result {
+		final String[] labels;
+		final List<Object[]> rows;
+
+		public Result(String[] _labels, List<Object[]> _rows) {
+			labels = _labels;
+			rows = _rows;
+		}
+
+		public Result(String... _labels) {
+			this(_labels, new ArrayList<Object[]>());
+		}
+
+		public Result add(Object... row) {
+			rows.add(row);
+			return this;
+		}
+	}
+
+	private VirtFakeJdbc() {
+	}
+
+	// ---- values as returned by the Virtuoso driver
+
+	public static ExtendedString iri(String iri) {
+		return new FakeString(iri, ExtendedString.IRI, 1);
+	}
+
+	public static ExtendedString bnode(String id) {
+		return new FakeString("nodeID://" + id, ExtendedString.BNODE, 1);
+	}
+
+	public static ExtendedString string(String s) {
+		return new FakeString(s, 0, 0);
+	}
+
+	public static RdfBox box(String value, String type, String lang) {
+		return new FakeRdfBox(value, type, lang);
+	}
+
+	// ---- JDBC objects
+
+	/**
+	 * Data source whose connections are answered by responder.
+	 */
+	public static VirtuosoDataSource dataSource(final Responder responder) {
+		return new VirtuosoDataSource() {
+			public Connection getConnection() throws SQLException {
+				return connection(responder);
+			}
+
+			public Connection getConnection(String user, String password)
+					throws SQLException {
+				return connection(responder);
+			}
+		};
+	}
+
+	public static Connection connection(Responder responder) {
+		return (Connection) proxy(Connection.class, new FakeConnection(
+				responder));
+	}
+
+	public static ResultSet resultSet(Result result) {
+		return (ResultSet) proxy(ResultSet.class, new FakeResultSet(result));
+	}
+
+	private static Object proxy(Class<?> iface, InvocationHandler h) {
+		return Proxy.newProxyInstance(VirtFakeJdbc.class.getClassLoader(),
+				new Class<?>[] { iface }, h);
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == Boolean.TYPE)
+			return Boolean.FALSE;
+		if (type == Integer.TYPE)
+			return Integer.valueOf(0);
+		if (type == Long.TYPE)
+			return Long.valueOf(0);
+		if (type == Short.TYPE)
+			return Short.valueOf((short) 0);
+		if (type == Byte.TYPE)
+			return Byte.valueOf((byte) 0);
+		if (type == Double.TYPE)
+			return Double.valueOf(0);
+		if (type == Float.TYPE)
+			return Float.valueOf(0);
+		return null;
+	}
+
+	private static abstract class Handler implements InvocationHandler {
+		boolean closed = false;
+
+		public Object invoke(Object proxy, Method m, Object[] args)
+				throws Throwable {
+			String name = m.getName();
+			if (name.equals("close")) {
+				closed = true;
+				return null;
+			}
+			if (name.equals("isClosed"))
+				return Boolean.valueOf(closed);
+			if (name.equals("hashCode"))
+				return Integer.valueOf(System.identityHashCode(proxy));
+			if (name.equals("equals"))
+				return Boolean.valueOf(proxy == args[0]);
+			if (name.equals("toString"))
+				return getClass().getSimpleName();
+			return handle(proxy, name, args, m.getReturnType());
+		}
+
+		abstract Object handle(Object proxy, String name, Object[] args,
+				Class<?> ret) throws SQLException;
+	}
+
+	private static class FakeConnection extends Handler {
+		Responder responder;
+		boolean autoCommit = true;
+
+		FakeConnection(Responder _responder) {
+			responder = _responder;
+		}
+
+		Object handle(Object proxy, String name, Object[] args, Class<?> ret)
+				throws SQLException {
+			if (name.equals("createStatement"))
+				return proxy(Statement.class, new FakeStatement(responder,
+						null));
+			if (name.equals("prepareStatement") || name.equals("prepareCall"))
+				return proxy(PreparedStatement.class, new FakeStatement(
+						responder, (String) args[0]));
+			if (name.equals("getAutoCommit"))
+				return Boolean.valueOf(autoCommit);
+			if (name.equals("setAutoCommit")) {
+				autoCommit = ((Boolean) args[0]).booleanValue();
+				return null;
+			}
+			if (name.equals("isValid"))
+				return Boolean.valueOf(!closed);
+			if (name.equals("getMetaData"))
+				return proxy(DatabaseMetaData.class, new FakeDatabaseMetaData());
+			return defaultValue(ret);
+		}
+	}
+
+	private static class FakeDatabaseMetaData extends Handler {
+		Object handle(Object proxy, String name, Object[] args, Class<?> ret) {
+			if (name.equals("supportsTransactions")
+					|| name.equals("supportsMultipleTransactions"))
+				return Boolean.TRUE;
+			return defaultValue(ret);
+		}
+	}
+
+	private static class FakeStatement extends Handler {
+		Responder responder;
+		String sql;
+		TreeMap<Integer, Object> params = new TreeMap<Integer, Object>();
+		List<List<Object>> batch = new ArrayList<List<Object>>();
+		ResultSet current = null;
+
+		FakeStatement(Responder _responder, String _sql) {
+			responder = _responder;
+			sql = _sql;
+		}
+
+		Object handle(Object proxy, String name, Object[] args, Class<?> ret)
+				throws SQLException {
+			if (name.startsWith("set") && args != null && args.length >= 2
+					&& args[0] instanceof Integer) {
+				params.put((Integer) args[0], args[1]);
+				return null;
+			}
+			if (name.equals("clearParameters")) {
+				params.clear();
+				return null;
+			}
+			if (name.equals("addBatch")) {
+				batch.add(new ArrayList<Object>(params.values()));
+				return null;
+			}
+			if (name.equals("clearBatch")) {
+				batch.clear();
+				return null;
+			}
+			if (name.equals("executeBatch")) {
+				int[] res = new int[batch.size()];
+				for (int i = 0; i < res.length; i++) {
+					responder.respond(sql, batch.get(i));
+					res[i] = 1;
+				}
+				batch.clear();
+				return res;
+			}
+			if (name.equals("executeQuery") || name.equals("execute")
+					|| name.equals("executeUpdate")) {
+				String text = (args != null && args.length > 0 ? (String) args[0]
+						: sql);
+				List<Object> p = (args != null && args.length > 0 ? Collections
+						.emptyList() : new ArrayList<Object>(params.values()));
+				Result r = responder.respond(text, p);
+				current = (r != null ? resultSet(r) : null);
+				if (name.equals("execute"))
+					return Boolean.valueOf(current != null);
+				if (name.equals("executeUpdate"))
+					return Integer.valueOf(current == null ? 1 : 0);
+				if (current == null)
+					current = resultSet(new Result(new String[0]));
+				return current;
+			}
+			if (name.equals("getResultSet"))
+				return current;
+			if (name.equals("getUpdateCount"))
+				return Integer.valueOf(-1);
+			return defaultValue(ret);
+		}
+	}
+
+	private static class FakeResultSet extends Handler {
+		Result result;
+		int row = -1;
+		Object last = null;
+
+		FakeResultSet(Result _result) {
+			result = _result;
+		}
+
+		Object handle(Object proxy, String name, Object[] args, Class<?> ret)
+				throws SQLException {
+			if (name.equals("next")) {
+				if (closed)
+					return Boolean.FALSE;
+				row++;
+				return Boolean.valueOf(row < result.rows.size());
+			}
+			if (name.equals("getMetaData"))
+				return proxy(ResultSetMetaData.class, new FakeMetaData(result));
+			if (name.equals("findColumn"))
+				return Integer.valueOf(column((String) args[0]));
+			if (name.equals("wasNull"))
+				return Boolean.valueOf(last == null);
+			if (name.startsWith("get") && args != null && args.length == 1) {
+				int col = (args[0] instanceof Integer ? ((Integer) args[0])
+						.intValue() : column((String) args[0]));
+				last = result.rows.get(row)[col - 1];
+				if (name.equals("getString"))
+					return (last != null ? last.toString() : null);
+				if (ret == Long.TYPE)
+					return Long.valueOf(last != null ? ((Number) last)
+							.longValue() : 0);
+				if (ret == Integer.TYPE)
+					return Integer.valueOf(last != null ? ((Number) last)
+							.intValue() : 0);
+				return last;
+			}
+			return defaultValue(ret);
+		}
+
+		int column(String label) throws SQLException {
+			for (int i = 0; i < result.labels.length; i++)
+				if (result.labels[i].equalsIgnoreCase(label))
+					return i + 1;
+			throw new SQLException("No column " + label);
+		}
+	}
+
+	private static class FakeMetaData extends Handler {
+		Result result;
+
+		FakeMetaData(Result _result) {
+			result = _result;
+		}
+
+		Object handle(Object proxy, String name, Object[] args, Class<?> ret) {
+			if (name.equals("getColumnCount"))
+				return Integer.valueOf(result.labels.length);
+			if (name.equals("getColumnLabel") || name.equals("getColumnName"))
+				return result.labels[((Integer) args[0]).intValue() - 1];
+			return defaultValue(ret);
+		}
+	}
+
+	private static class FakeString implements ExtendedString {
+		String str;
+		int iriType;
+		int strType;
+
+		FakeString(String _str, int _iriType, int _strType) {
+			str = _str;
+			iriType = _iriType;
+			strType = _strType;
+		}
+
+		public int getIriType() {
+			return iriType;
+		}
+
+		public int getStrType() {
+			return strType;
+		}
+
+		public String toString() {
+			return str;
+		}
+	}
+
+	private static class FakeRdfBox implements RdfBox {
+		String value;
+		String type;
+		String lang;
+
+		FakeRdfBox(String _value, String _type, String _lang) {
+			value = _value;
+			type = _type;
+			lang = _lang;
+		}
+
+		public short getLangKey(String l) {
+			return 0;
+		}
+
+		public short getTypeKey(String t) {
+			return 0;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getLang() {
+			return lang;
+		}
+
+		public String toString() {
+			return value;
+		}
+	}
+
+}
@@ -0,0 +1,374 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * End-to-end throughput harness. Runs fixed workloads through the public
+ * driver API and reports operations per second, items (triples or rows) per
+ * second and latency percentiles.
+ *
+ * The workloads run either against a Virtuoso instance (--url) or against
+ * VirtFakeJdbc, which replays generated result sets in process, so driver
+ * changes can be compared without network noise.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar virtuoso.jena.driver.VirtThroughputBench \
+ *     [--url jdbc:virtuoso://localhost:1111 --user dba --password dba] \
+ *     [--graph uri] [--workloads bulkAdd,add,...] [--ops n] [--heavy-ops n] \
+ *     [--warmup n] [--rows n] [--batch n]
+ * </pre>
+ */
+public class VirtThroughputBench {
+
+	static final String[] WORKLOADS = { "bulkAdd", "add", "findS", "findP",
+			"size", "select", "construct", "paramQuery", "inlineQuery" };
+
+	// workloads that touch a large part of the data per operation
+	static final List<String> HEAVY = Arrays.asList("findP", "select",
+			"construct");
+
+	static final String NS = "http://example.org/bench/";
+	static final String[] PREDICATES = { "http://xmlns.com/foaf/0.1/name",
+			"http://xmlns.com/foaf/0.1/knows",
+			"http://www.w3.org/1999/02/22-rdf-syntax-ns#type",
+			"http://xmlns.com/foaf/0.1/age" };
+
+	static final String SELECT = "SELECT ?s ?o WHERE { ?s <"
+			+ PREDICATES[0] + "> ?o }";
+	static final String CONSTRUCT = "CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }";
+	static final String BY_SUBJECT = "SELECT ?p ?o WHERE { ?s ?p ?o }";
+
+	private String url = null;
+	private String user = "dba";
+	private String password = "dba";
+	private String graphName = NS + "graph";
+	private List<String> workloads = Arrays.asList(WORKLOADS);
+	private int ops = 1000;
+	private int heavyOps = 5;
+	private int warmup = 100;
+	private int rows = 1000000;
+	private int batch = 1000;
+
+	private VirtGraph graph;
+	private Random random = new Random(42);
+	private long added = 0;
+
+	public static void main(String[] args) throws Exception {
+		VirtThroughputBench bench = new VirtThroughputBench();
+		bench.parseArgs(args);
+		bench.run(System.out);
+	}
+
+	void parseArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			String v = (i + 1 < args.length ? args[i + 1] : null);
+			if (v == null)
+				throw new IllegalArgumentException("Missing value for " + a);
+			i++;
+			if (a.equals("--url"))
+				url = v;
+			else if (a.equals("--user"))
+				user = v;
+			else if (a.equals("--password"))
+				password = v;
+			else if (a.equals("--graph"))
+				graphName = v;
+			else if (a.equals("--workloads"))
+				workloads = Arrays.asList(v.split(","));
+			else if (a.equals("--ops"))
+				ops = Integer.parseInt(v);
+			else if (a.equals("--heavy-ops"))
+				heavyOps = Integer.parseInt(v);
+			else if (a.equals("--warmup"))
+				warmup = Integer.parseInt(v);
+			else if (a.equals("--rows"))
+				rows = Integer.parseInt(v);
+			else if (a.equals("--batch"))
+				batch = Integer.parseInt(v);
+			else
+				throw new IllegalArgumentException("Unknown option " + a);
+		}
+	}
+
+	void run(PrintStream out) throws Exception {
+		if (url != null) {
+			graph = new VirtGraph(graphName, url, user, password);
+			if (graph.size() < rows) {
+				out.println("Loading " + rows + " triples into " + graphName);
+				graph.getBulkUpdateHandler().removeAll();
+				graph.getBulkUpdateHandler().add(triples(0, rows));
+			}
+		} else {
+			graph = new VirtGraph(graphName, VirtFakeJdbc.dataSource(new Fake()));
+		}
+
+		out.println(String.format("%-12s %8s %10s %12s %14s %10s %10s %10s",
+				"workload", "ops", "items/op", "ops/s", "items/s", "p50 ms",
+				"p95 ms", "p99 ms"));
+		try {
+			for (Iterator<String> i = workloads.iterator(); i.hasNext();) {
+				String w = i.next().trim();
+				int n = HEAVY.contains(w) ? heavyOps : ops;
+				int wu = HEAVY.contains(w) ? Math.min(warmup, 1) : warmup;
+
+				for (int j = 0; j < wu; j++)
+					runOp(w);
+
+				long[] times = new long[n];
+				long items = 0;
+				long start = System.nanoTime();
+				for (int j = 0; j < n; j++) {
+					long t0 = System.nanoTime();
+					items += runOp(w);
+					times[j] = System.nanoTime() - t0;
+				}
+				double secs = (System.nanoTime() - start) / 1e9;
+				Arrays.sort(times);
+				out.println(String.format(
+						"%-12s %8d %10d %12.1f %14.1f %10.3f %10.3f %10.3f", w,
+						n, (n > 0 ? items / n : 0), n / secs, items / secs,
+						percentile(times, 50), percentile(times, 95),
+						percentile(times, 99)));
+			}
+		} finally {
+			graph.close();
+		}
+	}
+
+	static double percentile(long[] sorted, int p) {
+		if (sorted.length == 0)
+			return 0;
+		int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, i)] / 1e6;
+	}
+
+	/**
+	 * Run one operation of workload w.
+	 *
+	 * @return the number of triples or rows processed
+	 */
+	long runOp(String w) {
+		if (w.equals("bulkAdd")) {
+			long base = rows + added;
+			added += batch;
+			graph.getBulkUpdateHandler().add(triples(base, batch));
+			return batch;
+		}
+		if (w.equals("add")) {
+			long base = rows + added++;
+			graph.performAdd(triple(base));
+			return 1;
+		}
+		if (w.equals("findS"))
+			return count(graph.find(subject(random.nextInt(rows / 4)),
+					Node.ANY, Node.ANY));
+		if (w.equals("findP"))
+			return count(graph.find(Node.ANY, Node.createURI(PREDICATES[1]),
+					Node.ANY));
+		if (w.equals("size")) {
+			graph.size();
+			return 1;
+		}
+		if (w.equals("select")) {
+			VirtuosoQueryExecution qe = VirtuosoQueryExecutionFactory.create(
+					SELECT, graph);
+			try {
+				ResultSet rs = qe.execSelect();
+				long n = 0;
+				while (rs.hasNext()) {
+					rs.nextBinding();
+					n++;
+				}
+				return n;
+			} finally {
+				qe.close();
+			}
+		}
+		if (w.equals("construct")) {
+			VirtuosoQueryExecution qe = VirtuosoQueryExecutionFactory.create(
+					CONSTRUCT, graph);
+			try {
+				Model m = qe.execConstruct(ModelFactory.createDefaultModel());
+				return m.size();
+			} finally {
+				qe.close();
+			}
+		}
+		if (w.equals("paramQuery") || w.equals("inlineQuery")) {
+			VirtuosoQueryExecution qe = VirtuosoQueryExecutionFactory.create(
+					BY_SUBJECT, graph);
+			try {
+				qe.setParameterized(w.equals("paramQuery"));
+				QuerySolutionMap args = new QuerySolutionMap();
+				args.add("s", ModelFactory.createDefaultModel().asRDFNode(
+						subject(random.nextInt(rows / 4))));
+				qe.setInitialBinding(args);
+				ResultSet rs = qe.execSelect();
+				long n = 0;
+				while (rs.hasNext()) {
+					rs.nextBinding();
+					n++;
+				}
+				return n;
+			} finally {
+				qe.close();
+			}
+		}
+		throw new IllegalArgumentException("Unknown workload " + w);
+	}
+
+	static long count(ExtendedIterator<Triple> it) {
+		long n = 0;
+		try {
+			while (it.hasNext()) {
+				it.next();
+				n++;
+			}
+		} finally {
+			it.close();
+		}
+		return n;
+	}
+
+	// ---- data: subject i/4 with one triple per predicate
+
+	static Node subject(long i) {
+		return Node.createURI(NS + "s" + i);
+	}
+
+	static Triple triple(long i) {
+		Node s = subject(i / 4);
+		int p = (int) (i % 4);
+		Node o;
+		if (p == 0)
+			o = Node.createLiteral("Name " + i, "en", false);
+		else if (p == 1)
+			o = subject((i / 4) + 1);
+		else if (p == 2)
+			o = Node.createURI("http://xmlns.com/foaf/0.1/Person");
+		else
+			o = Node.createLiteral(Long.toString(i % 90), null,
+					com.hp.hpl.jena.datatypes.xsd.XSDDatatype.XSDinteger);
+		return new Triple(s, Node.createURI(PREDICATES[p]), o);
+	}
+
+	static List<Triple> triples(final long base, final int n) {
+		List<Triple> res = new ArrayList<Triple>(n);
+		for (int i = 0; i < n; i++)
+			res.add(triple(base + i));
+		return res;
+	}
+
+	// JDBC value of a node as returned by the Virtuoso driver
+	static Object value(Node n) {
+		if (n.isURI())
+			return VirtFakeJdbc.iri(n.getURI());
+		if (n.getLiteralDatatypeURI() != null)
+			return Integer.valueOf(n.getLiteralLexicalForm());
+		return VirtFakeJdbc.box(n.getLiteralLexicalForm(), null,
+				n.getLiteralLanguage());
+	}
+
+	/**
+	 * Answers the statements issued by the workloads from the generated
+	 * data, without keeping it in memory.
+	 */
+	class Fake implements VirtFakeJdbc.Responder {
+		public VirtFakeJdbc.Result respond(String sql, List<Object> params)
+				throws SQLException {
+			String q = sql.toLowerCase();
+			if (q.startsWith("db.dba.xml_select_all_ns_decls"))
+				return new VirtFakeJdbc.Result("prefix", "uri");
+			// size(): exact count, statistics estimate and emptiness probe
+			if (q.indexOf("select count(*)") >= 0
+					|| q.indexOf("from db.dba.sys_col_stat") >= 0)
+				return new VirtFakeJdbc.Result("c").add(Long.valueOf(rows));
+			if (q.indexOf(" select 1 ") >= 0 && q.endsWith(" limit 1"))
+				return new VirtFakeJdbc.Result("c").add(Integer.valueOf(1));
+			if (q.indexOf(" insert ") >= 0 || q.indexOf(" delete ") >= 0
+					|| q.indexOf(" clear ") >= 0)
+				return null;
+			if (q.indexOf("construct") >= 0)
+				return rows(new String[] { "s", "p", "o" }, 0, rows, 1);
+			if (sql.indexOf(SELECT.substring(SELECT.indexOf("WHERE"))) >= 0)
+				return rows(new String[] { "s", "o" }, 0, rows, 4);
+			if (sql.indexOf("?p ?o") >= 0 && sql.indexOf("SELECT ?p ?o") >= 0)
+				return rows(new String[] { "p", "o" }, 0, 4, 1);
+			if (q.indexOf("select * from <") >= 0) {
+				if (q.indexOf(" ?s ") < 0) // find(S, ?, ?)
+					return rows(new String[] { "p", "o" }, 0, 4, 1);
+				return rows(new String[] { "s", "o" }, 1, rows, 4);
+			}
+			// a workload whose SQL changed would otherwise measure an empty
+			// result
+			throw new SQLException("Unexpected statement: " + sql);
+		}
+
+		/**
+		 * Every step-th triple starting at first, up to end, projected on
+		 * the columns s, p and o named by cols.
+		 */
+		private VirtFakeJdbc.Result rows(final String[] cols, final long first,
+				final long end, final int step) {
+			final int n = (int) ((end - first + step - 1) / step);
+			List<Object[]> data = new AbstractList<Object[]>() {
+				public Object[] get(int i) {
+					Triple t = triple(first + (long) i * step);
+					Object[] row = new Object[cols.length];
+					for (int c = 0; c < cols.length; c++) {
+						char col = cols[c].charAt(0);
+						row[c] = value(col == 's' ? t.getSubject()
+								: (col == 'p' ? t.getPredicate() : t
+										.getObject()));
+					}
+					return row;
+				}
+
+				public int size() {
+					return n;
+				}
+			};
+			return new VirtFakeJdbc.Result(cols, data);
+		}
+	}
+
+}
@@ -0,0 +1,368 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import virtuoso.jdbc4.VirtuosoDataSource;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.TransactionHandler;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Concurrency stress test of a pooled VirtGraph over VirtFakeJdbc. The fake
+ * answers every find(ANY, ANY, ANY) with the same known triples after a
+ * simulated server latency.
+ * 
+ * The first phase runs writer threads, whose transactions are sometimes
+ * aborted and sometimes try a nested begin, against reader threads that
+ * iterate the graph under its read lock. It checks that
+ * <ul>
+ * <li>no two transactions are open at the same time, and no reader holds
+ * the read lock during one,</li>
+ * <li>a nested begin fails and leaves the outer transaction usable,</li>
+ * <li>every write of a transaction runs on the connection pinned to its
+ * thread, with autocommit off,</li>
+ * <li>every commit and abort reaches the connection,</li>
+ * <li>every read returns exactly the known triples, and</li>
+ * <li>no thread deadlocks.</li>
+ * </ul>
+ * The second phase times the same read workload per thread with 1, 2, 4
+ * and 8 readers and checks that n readers get through at least n/2 times
+ * the reads of one in the same time.
+ * 
+ * Exits with status 1 when a check fails.
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar virtuoso.jena.driver.VirtTransactionStress \
+ *     [writers] [readers] [iterations] [latency ms]
+ * </pre>
+ */
+public class VirtTransactionStress {
+
+	static final String NS = "http://example.org/stress/";
+	static final int TRIPLES = 64;
+	static final int[] SCALING_READERS = { 1, 2, 4, 8 };
+
+	private int writers = 8;
+	private int readers = 4;
+	private int iterations = 500;
+	private long latency = 2;
+
+	private VirtGraph graph;
+	private final Set<Triple> expected = new HashSet<Triple>();
+	private final VirtFakeJdbc.Result rows = new VirtFakeJdbc.Result("s",
+			"p", "o");
+	private final AtomicInteger inside = new AtomicInteger();
+	private final AtomicInteger reading = new AtomicInteger();
+	private final AtomicInteger committed = new AtomicInteger();
+	private final AtomicInteger aborted = new AtomicInteger();
+	private final AtomicInteger commits = new AtomicInteger();
+	private final AtomicInteger rollbacks = new AtomicInteger();
+	private final AtomicInteger reads = new AtomicInteger();
+	private final ThreadLocal<Boolean> inTransaction = new ThreadLocal<Boolean>();
+	private final List<String> failures = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	public static void main(String[] args) throws Exception {
+		VirtTransactionStress stress = new VirtTransactionStress();
+		if (args.length > 0)
+			stress.writers = Integer.parseInt(args[0]);
+		if (args.length > 1)
+			stress.readers = Integer.parseInt(args[1]);
+		if (args.length > 2)
+			stress.iterations = Integer.parseInt(args[2]);
+		if (args.length > 3)
+			stress.latency = Long.parseLong(args[3]);
+		System.exit(stress.run(System.out) ? 0 : 1);
+	}
+
+	boolean run(PrintStream out) throws Exception {
+		for (int i = 0; i < TRIPLES; i++) {
+			Node s = Node.createURI(NS + "s" + (i / 4));
+			Node p = Node.createURI(NS + "p" + (i % 4));
+			Node o = (i % 2 == 0 ? Node.createURI(NS + "o" + i) : Node
+					.createLiteral("v" + i, "en", false));
+			expected.add(new Triple(s, p, o));
+			rows.add(VirtFakeJdbc.iri(s.getURI()), VirtFakeJdbc.iri(p
+					.getURI()), o.isURI() ? VirtFakeJdbc.iri(o.getURI())
+					: VirtFakeJdbc.box(o.getLiteralLexicalForm(), null, "en"));
+		}
+		final String find = "select * from <" + NS + "graph> where {";
+		final VirtuosoDataSource fake = VirtFakeJdbc
+				.dataSource(new VirtFakeJdbc.Responder() {
+					public VirtFakeJdbc.Result respond(String sql,
+							List<Object> params) throws SQLException {
+						if (sql.startsWith("DB.DBA.XML_SELECT_ALL_NS_DECLS"))
+							return new VirtFakeJdbc.Result("prefix", "uri");
+						if (sql.startsWith("sparql insert"))
+							return null;
+						if (sql.indexOf(find) >= 0) {
+							try {
+								Thread.sleep(latency);
+							} catch (InterruptedException e) {
+								throw new SQLException(e);
+							}
+							return rows;
+						}
+						throw new SQLException("Unexpected statement: " + sql);
+					}
+				});
+		VirtuosoDataSource ds = new VirtuosoDataSource() {
+			public Connection getConnection() throws SQLException {
+				return record(fake.getConnection());
+			}
+
+			public Connection getConnection(String user, String password)
+					throws SQLException {
+				return getConnection();
+			}
+		};
+		graph = new VirtGraph(NS + "graph", ds);
+		graph.setPoolSize(Math.max(writers + readers,
+				SCALING_READERS[SCALING_READERS.length - 1]));
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < writers; i++)
+			threads.add(thread("writer-" + i, new Writer(i)));
+		for (int i = 0; i < readers; i++)
+			threads.add(thread("reader-" + i, new Reader(iterations)));
+		long time = runAll(threads);
+
+		if (commits.get() != committed.get() + aborted.get())
+			failures.add(commits.get() + " commits on the connections for "
+					+ committed.get() + " commits and " + aborted.get()
+					+ " aborts");
+		if (rollbacks.get() != aborted.get())
+			failures.add(rollbacks.get() + " rollbacks for " + aborted.get()
+					+ " aborts");
+		out.println(committed.get() + " committed, " + aborted.get()
+				+ " aborted, " + reads.get() + " reads in " + time + " ms");
+
+		if (failures.isEmpty())
+			scaling(out);
+
+		for (String f : failures)
+			out.println("FAILED: " + f);
+		graph.close();
+		return failures.isEmpty();
+	}
+
+	// reads per second of n readers, each doing the same number of reads
+	private void scaling(PrintStream out) throws InterruptedException {
+		int rounds = Math.max(1, iterations / 5);
+		double base = 0;
+		for (int n : SCALING_READERS) {
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < n; i++)
+				threads.add(thread("scaling-reader-" + i, new Reader(rounds)));
+			long time = Math.max(1, runAll(threads));
+			double rate = 1000.0 * n * rounds / time;
+			if (n == 1)
+				base = rate;
+			double speedup = rate / base;
+			out.println(String.format("%d readers: %.0f reads/s, %.2fx", n,
+					rate, speedup));
+			if (speedup < n / 2.0)
+				failures.add(n + " readers are only " + String.format("%.2f",
+						speedup) + " times as fast as one");
+		}
+	}
+
+	private long runAll(List<Thread> threads) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads) {
+			t.join(60000);
+			if (t.isAlive())
+				failures.add(t.getName() + " did not finish, deadlock?");
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private Thread thread(final String name, final Runnable r) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					r.run();
+				} catch (Throwable e) {
+					failures.add(name + ": " + e);
+				}
+			}
+		}, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	private class Writer implements Runnable {
+		final Random random;
+
+		Writer(int seed) {
+			random = new Random(seed);
+		}
+
+		public void run() {
+			TransactionHandler th = graph.getTransactionHandler();
+			for (int i = 0; i < iterations; i++) {
+				th.begin();
+				inTransaction.set(Boolean.TRUE);
+				if (inside.incrementAndGet() != 1)
+					failures.add("two transactions open at once");
+				if (reading.get() != 0)
+					failures.add("transaction open while reading");
+				try {
+					for (int j = 0; j < 3; j++)
+						graph.add(new Triple(Node.createURI(NS + "s" + i),
+								Node.createURI(NS + "p" + j), Node
+										.createLiteral("v" + random.nextInt())));
+					if (random.nextInt(10) == 0) {
+						try {
+							th.begin();
+							failures.add("nested begin did not fail");
+						} catch (JenaException e) {
+						}
+					}
+				} finally {
+					inside.decrementAndGet();
+					inTransaction.remove();
+				}
+				if (random.nextInt(5) == 0) {
+					th.abort();
+					aborted.incrementAndGet();
+				} else {
+					th.commit();
+					committed.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private class Reader implements Runnable {
+		final int rounds;
+
+		Reader(int _rounds) {
+			rounds = _rounds;
+		}
+
+		public void run() {
+			Lock lock = graph.getLock();
+			for (int i = 0; i < rounds; i++) {
+				Set<Triple> found = new HashSet<Triple>();
+				int n = 0;
+				lock.enterCriticalSection(Lock.READ);
+				reading.incrementAndGet();
+				try {
+					if (inside.get() != 0)
+						failures.add("reading while a transaction is open");
+					ExtendedIterator<Triple> it = graph.find(Node.ANY,
+							Node.ANY, Node.ANY);
+					try {
+						while (it.hasNext()) {
+							found.add(it.next());
+							n++;
+						}
+					} finally {
+						it.close();
+					}
+				} finally {
+					reading.decrementAndGet();
+					lock.leaveCriticalSection();
+				}
+				if (n != expected.size() || !found.equals(expected))
+					failures.add("read " + n + " triples, " + found.size()
+							+ " distinct, not the " + expected.size()
+							+ " expected");
+				reads.incrementAndGet();
+			}
+		}
+	}
+
+	// counts commits and rollbacks and checks the connection of every write
+	private Connection record(final Connection c) {
+		return (Connection) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args)
+							throws Throwable {
+						String name = m.getName();
+						if (name.equals("commit"))
+							commits.incrementAndGet();
+						else if (name.equals("rollback"))
+							rollbacks.incrementAndGet();
+						Object ret = call(c, m, args);
+						if (ret instanceof Statement)
+							return check((Statement) ret, (Connection) proxy,
+									m.getReturnType());
+						return ret;
+					}
+				});
+	}
+
+	private Object check(final Statement st, final Connection owner,
+			Class<?> type) {
+		return Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args)
+							throws Throwable {
+						if (m.getName().startsWith("execute")
+								&& inTransaction.get() != null) {
+							if (owner != graph.getConnection())
+								failures.add("write outside the pinned connection");
+							else if (owner.getAutoCommit())
+								failures.add("write in autocommit mode");
+						}
+						return call(st, m, args);
+					}
+				});
+	}
+
+	private static Object call(Object target, Method m, Object[] args)
+			throws Throwable {
+		try {
+			return m.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * Double buffered batch writer. The caller binds triples into one prepared
+ * statement while the batch of the other is executed by a background
+ * thread, so client side binding overlaps with the server's work. The batch
+ * size starts at the graph's and adapts to the observed executeBatch
+ * latency.
+ *
+ * The writer has its own connection in autocommit mode: a batch is durable
+ * once executed. flush() returns a future that completes when every triple
+ * added before it has been written. A failed batch makes the next add(),
+ * flush() or close() throw; the triples of the failed batch are lost.
+ *
+ * A writer is meant to be fed by a single thread. Graph listeners are not
+ * notified of the written triples.
+ */
+public class VirtAsyncWriter {
+
+	private VirtGraph graph;
+	private String graphName;
+	private Connection connection;
+	private PreparedStatement filling;
+	private PreparedStatement spare;
+	private int count = 0;
+	private long bytes = 0;
+	private VirtBatchSizer sizer;
+
+	private ExecutorService executor;
+	private Future<?> inFlight = null;
+	private volatile Throwable failure = null;
+	private volatile long written = 0;
+	private boolean closed = false;
+
+	public VirtAsyncWriter(VirtGraph _graph) {
+		this(_graph, _graph.getGraphName());
+	}
+
+	public VirtAsyncWriter(VirtGraph _graph, String _graphName) {
+		graph = _graph;
+		graphName = _graphName;
+		sizer = new VirtBatchSizer(graph.getBatchSizer(), true);
+
+		try {
+			connection = graph.openConnection();
+			filling = connection.prepareStatement(VirtGraph.sinsert);
+			spare = connection.prepareStatement(VirtGraph.sinsert);
+		} catch (SQLException e) {
+			closeQuietly();
+			throw new JenaException(e);
+		}
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "VirtAsyncWriter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void add(Triple t) {
+		checkFailure();
+		if (closed)
+			throw new JenaException("VirtAsyncWriter is closed");
+		try {
+			filling.setString(1, graphName);
+			graph.bindSubject(filling, 2, t.getSubject());
+			graph.bindPredicate(filling, 3, t.getPredicate());
+			graph.bindObject(filling, 4, t.getObject());
+			filling.addBatch();
+		} catch (SQLException e) {
+			throw new JenaException(e);
+		}
+		count++;
+		bytes += VirtBatchSizer.estimate(t);
+		if (sizer.isFull(count, bytes))
+			submit();
+	}
+
+	public void add(Iterator<Triple> it) {
+		while (it.hasNext())
+			add(it.next());
+	}
+
+	/**
+	 * Send the triples added so far.
+	 *
+	 * @return a future that completes, with the number of triples written,
+	 *         when they have all been written
+	 */
+	public Future<Long> flush() {
+		checkFailure();
+		if (count > 0)
+			submit();
+		return executor.submit(new Callable<Long>() {
+			public Long call() {
+				graph.sizeUnknown();
+				if (failure != null)
+					throw new JenaException("Batch write failed", failure);
+				return Long.valueOf(written);
+			}
+		});
+	}
+
+	/**
+	 * Write the remaining triples, wait for them and release the connection.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		try {
+			waitFor(flush());
+		} finally {
+			closed = true;
+			executor.shutdown();
+			closeQuietly();
+		}
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * The size the current batch is sent at.
+	 */
+	public int getBatchSize() {
+		return sizer.getSize();
+	}
+
+	// hand the filled statement to the background thread and continue with
+	// the other one once its batch is done
+	private void submit() {
+		waitFor(inFlight);
+
+		final PreparedStatement ps = filling;
+		final int n = count;
+		filling = spare;
+		spare = ps;
+		count = 0;
+		bytes = 0;
+
+		inFlight = executor.submit(new Runnable() {
+			public void run() {
+				if (failure != null)
+					return;
+				long start = System.currentTimeMillis();
+				try {
+					ps.executeBatch();
+					written += n;
+					sizer.observe(n, System.currentTimeMillis() - start);
+				} catch (Throwable e) {
+					failure = e;
+				} finally {
+					try {
+						ps.clearBatch();
+					} catch (SQLException e) {
+					}
+				}
+			}
+		});
+	}
+
+	private void waitFor(Future<?> f) {
+		if (f == null)
+			return;
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JenaException(e);
+		} catch (ExecutionException e) {
+			throw new JenaException(e.getCause());
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() {
+		Throwable e = failure;
+		if (e != null)
+			throw new JenaException("Batch write failed", e);
+	}
+
+	private void closeQuietly() {
+		try {
+			if (filling != null)
+				filling.close();
+		} catch (Exception e) {
+		}
+		try {
+			if (spare != null)
+				spare.close();
+		} catch (Exception e) {
+		}
+		try {
+			if (connection != null)
+				connection.close();
+		} catch (Exception e) {
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Decides when a batch of triples is sent. A batch is full when it has
+ * reached the batch size or the byte bound, whichever comes first. The byte
+ * bound keeps literal-heavy batches from growing without limit on the
+ * server.
+ *
+ * In adaptive mode the batch size follows the observed executeBatch
+ * latency: it grows while batches finish well under the target latency and
+ * shrinks in proportion when they take longer.
+ */
+public class VirtBatchSizer {
+
+	public static final int MIN_SIZE = 100;
+	public static final int MAX_SIZE = 50000;
+	public static final long DEFAULT_TARGET_MILLIS = 250;
+	public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+	// estimated bytes per bound node besides its text
+	private static final int NODE_OVERHEAD = 8;
+
+	private int size;
+	private boolean adaptive;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private long targetMillis = DEFAULT_TARGET_MILLIS;
+
+	public VirtBatchSizer(int _size, boolean _adaptive) {
+		size = _size;
+		adaptive = _adaptive;
+	}
+
+	VirtBatchSizer(VirtBatchSizer s, boolean _adaptive) {
+		this(s.getSize(), _adaptive);
+		maxBytes = s.getMaxBytes();
+		targetMillis = s.getTargetMillis();
+	}
+
+	public synchronized int getSize() {
+		return size;
+	}
+
+	public synchronized void setSize(int _size) {
+		if (_size < 1)
+			throw new IllegalArgumentException("batch size < 1");
+		size = _size;
+	}
+
+	public synchronized boolean isAdaptive() {
+		return adaptive;
+	}
+
+	public synchronized void setAdaptive(boolean _adaptive) {
+		adaptive = _adaptive;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Set the estimated number of bytes after which a batch is sent, 0 for
+	 * no bound.
+	 */
+	public synchronized void setMaxBytes(long _maxBytes) {
+		maxBytes = _maxBytes;
+	}
+
+	public synchronized long getTargetMillis() {
+		return targetMillis;
+	}
+
+	public synchronized void setTargetMillis(long _targetMillis) {
+		targetMillis = _targetMillis;
+	}
+
+	/**
+	 * Is a batch of count triples of about bytes bytes full?
+	 */
+	public synchronized boolean isFull(int count, long bytes) {
+		return count >= size || (maxBytes > 0 && bytes >= maxBytes);
+	}
+
+	/**
+	 * Record that a batch of n triples took millis to execute.
+	 */
+	public synchronized void observe(int n, long millis) {
+		if (!adaptive || n < size / 2) // a partial batch says little
+			return;
+		if (millis > targetMillis)
+			size = (int) Math.max(MIN_SIZE, n * targetMillis / millis);
+		else if (millis < targetMillis / 2)
+			size = Math.min(MAX_SIZE, Math.max(size, n) + size / 2);
+	}
+
+	/**
+	 * Execute and clear the batch of ps, which holds n triples.
+	 */
+	void execute(PreparedStatement ps, int n) throws SQLException {
+		long start = System.currentTimeMillis();
+		ps.executeBatch();
+		observe(n, System.currentTimeMillis() - start);
+		ps.clearBatch();
+	}
+
+	/**
+	 * Estimated number of bytes t takes in a batch.
+	 */
+	public static long estimate(Triple t) {
+		return estimate(t.getSubject()) + estimate(t.getPredicate())
+				+ estimate(t.getObject());
+	}
+
+	private static long estimate(Node n) {
+		if (n.isURI())
+			return NODE_OVERHEAD + n.getURI().length();
+		if (n.isLiteral()) {
+			String dt = n.getLiteralDatatypeURI();
+			String lang = n.getLiteralLanguage();
+			return NODE_OVERHEAD + n.getLiteralLexicalForm().length()
+					+ (dt != null ? dt.length() : 0)
+					+ (lang != null ? lang.length() : 0);
+		}
+		return NODE_OVERHEAD + 16;
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingBase;
+
+/**
+ * Immutable binding of one result row. The variables are shared by all rows
+ * of a result set, the values are held in an array parallel to them; a null
+ * value leaves the variable unbound.
+ */
+public class VirtBinding extends BindingBase {
+
+	private final Var[] vars;
+	private final Node[] values;
+
+	public VirtBinding(Binding _parent, Var[] _vars, Node[] _values) {
+		super(_parent);
+		vars = _vars;
+		values = _values;
+	}
+
+	protected Iterator<Var> vars1() {
+		return new Iterator<Var>() {
+			int i = advance(0);
+
+			private int advance(int j) {
+				while (j < values.length && values[j] == null)
+					j++;
+				return j;
+			}
+
+			public boolean hasNext() {
+				return i < values.length;
+			}
+
+			public Var next() {
+				if (i >= values.length)
+					throw new NoSuchElementException();
+				Var v = vars[i];
+				i = advance(i + 1);
+				return v;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException(
+						"VirtBinding.vars().remove");
+			}
+		};
+	}
+
+	protected int size1() {
+		int n = 0;
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != null)
+				n++;
+		return n;
+	}
+
+	protected boolean isEmpty1() {
+		return size1() == 0;
+	}
+
+	protected boolean contains1(Var var) {
+		return get1(var) != null;
+	}
+
+	protected Node get1(Var var) {
+		for (int i = 0; i < vars.length; i++)
+			if (vars[i] == var)
+				return values[i];
+		for (int i = 0; i < vars.length; i++)
+			if (vars[i].equals(var))
+				return values[i];
+		return null;
+	}
+
+}
@@ -0,0 +1,318 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVars;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.Op1;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.algebra.op.OpSequence;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.binding.BindingRoot;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIter1;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementData;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
+
+/**
+ * Bound join of a stream of bindings with a VirtOp. Up to batchSize input
+ * bindings are sent to Virtuoso in one query as a VALUES block, and the
+ * solutions are merged back with the input bindings they are compatible
+ * with. This takes one round trip per batch instead of one per binding.
+ * A batch that binds none of the variables of the VirtOp is joined with
+ * its solutions, which are fetched once and kept for later such batches.
+ */
+public class VirtBoundJoin extends QueryIter1 {
+
+	private VirtOp op;
+	private int batchSize;
+	private Set<Var> opVars;
+
+	private List<Binding> batch = null;
+	private Map<List<Node>, List<Binding>> index = null;
+	private List<Var> joinVars = null;
+	private QueryIterator current = null;
+	private List<Binding> unbound = null;
+
+	private Iterator<Binding> pending = null;
+
+	public VirtBoundJoin(QueryIterator input, VirtOp _op, int _batchSize,
+			ExecutionContext execCxt) {
+		super(input, execCxt);
+		op = _op;
+		batchSize = _batchSize;
+		opVars = visibleVars(op.getSubOp());
+	}
+
+	/**
+	 * The variables of the solutions of op, a sub-tree accepted by
+	 * VirtOp.isPushable(). Variables that a project hides are left out.
+	 */
+	static Set<Var> visibleVars(Op op) {
+		Set<Var> vars = new LinkedHashSet<Var>();
+		if (op instanceof OpProject)
+			vars.addAll(((OpProject) op).getVars());
+		else if (op instanceof OpBGP)
+			vars.addAll(OpVars.vars(((OpBGP) op).getPattern()));
+		else if (op instanceof Op1)
+			vars.addAll(visibleVars(((Op1) op).getSubOp()));
+		else if (op instanceof OpJoin) {
+			vars.addAll(visibleVars(((OpJoin) op).getLeft()));
+			vars.addAll(visibleVars(((OpJoin) op).getRight()));
+		} else if (op instanceof OpSequence) {
+			for (Op sub : ((OpSequence) op).getElements())
+				vars.addAll(visibleVars(sub));
+		} else
+			vars.addAll(OpVars.allVars(op));
+		return vars;
+	}
+
+	/**
+	 * Can op be evaluated for a whole batch of bindings at once? A slice has
+	 * to be applied per input binding, so it can not.
+	 */
+	public static boolean isBatchable(Op op) {
+		final boolean[] slice = { false };
+		OpWalker.walk(op, new OpVisitorBase() {
+			@Override
+			public void visit(OpSlice opSlice) {
+				slice[0] = true;
+			}
+		});
+		return !slice[0];
+	}
+
+	protected boolean hasNextBinding() {
+		while (true) {
+			if (pending != null && pending.hasNext())
+				return true;
+			pending = null;
+
+			if (current != null && current.hasNext()) {
+				pending = merge(current.nextBinding()).iterator();
+				continue;
+			}
+			closeCurrent();
+
+			if (!getInput().hasNext())
+				return false;
+			nextBatch();
+		}
+	}
+
+	protected Binding moveToNextBinding() {
+		if (!hasNextBinding())
+			return null;
+		return pending.next();
+	}
+
+	private void nextBatch() {
+		batch = new ArrayList<Binding>(batchSize);
+		while (batch.size() < batchSize && getInput().hasNext())
+			batch.add(getInput().nextBinding());
+
+		// variables of the sub-tree bound by at least one input binding
+		Set<Var> vars = new LinkedHashSet<Var>();
+		for (Iterator<Binding> i = batch.iterator(); i.hasNext();) {
+			Binding b = i.next();
+			for (Iterator<Var> j = b.vars(); j.hasNext();) {
+				Var v = j.next();
+				if (opVars.contains(v))
+					vars.add(v);
+			}
+		}
+		joinVars = new ArrayList<Var>(vars);
+
+		// index the batch by the join values when every binding has them all
+		index = new HashMap<List<Node>, List<Binding>>();
+		for (Iterator<Binding> i = batch.iterator(); i.hasNext() && index != null;) {
+			Binding b = i.next();
+			List<Node> key = key(b);
+			if (key == null) {
+				index = null;
+			} else {
+				List<Binding> l = index.get(key);
+				if (l == null)
+					index.put(key, l = new ArrayList<Binding>(1));
+				l.add(b);
+			}
+		}
+
+		if (joinVars.isEmpty()) {
+			if (unbound == null)
+				unbound = fetchAll();
+			current = new QueryIterPlainWrapper(unbound.iterator(),
+					getExecContext());
+		} else
+			current = VirtuosoQueryEngine.execQuery(op.getGraph(),
+					toSPARQL(), BindingRoot.create());
+	}
+
+	private List<Binding> fetchAll() {
+		List<Binding> res = new ArrayList<Binding>();
+		QueryIterator it = VirtuosoQueryEngine.execQuery(op.getGraph(),
+				VirtOp.toSPARQL(op.getSubOp()), BindingRoot.create());
+		current = it;
+		try {
+			while (it.hasNext())
+				res.add(it.nextBinding());
+		} finally {
+			closeCurrent();
+		}
+		return res;
+	}
+
+	private String toSPARQL() {
+		Query query = VirtOp.toQuery(op.getSubOp());
+		ElementData data = new ElementData();
+		for (Iterator<Var> i = joinVars.iterator(); i.hasNext();)
+			data.add(i.next());
+		// a repeated row would repeat its solutions, and each of them is
+		// merged with every input binding of that row already
+		Set<List<Node>> rows = new HashSet<List<Node>>();
+		for (Iterator<Binding> i = batch.iterator(); i.hasNext();) {
+			Binding b = i.next();
+			if (rows.add(values(b)))
+				data.add(toValuesRow(b));
+		}
+
+		// The VALUES block goes into the top level group, so that its
+		// filters see the values of the input bindings.
+		Element pattern = query.getQueryPattern();
+		ElementGroup group;
+		if (pattern instanceof ElementGroup) {
+			group = (ElementGroup) pattern;
+		} else {
+			group = new ElementGroup();
+			if (pattern != null)
+				group.addElement(pattern);
+			query.setQueryPattern(group);
+		}
+		group.getElements().add(0, data);
+		return query.toString();
+	}
+
+	// Blank nodes are passed the way VirtGraph.Node2Str writes them, as
+	// <_:label>, and come back from Virtuoso as the same blank node.
+	private Binding toValuesRow(Binding b) {
+		BindingMap res = BindingFactory.create();
+		for (Iterator<Var> i = joinVars.iterator(); i.hasNext();) {
+			Var v = i.next();
+			Node n = b.get(v);
+			if (n == null)
+				continue;
+			if (n.isBlank())
+				n = Node.createURI("_:" + n);
+			res.add(v, n);
+		}
+		return res;
+	}
+
+	// the join values of b, null where b has none
+	private List<Node> values(Binding b) {
+		List<Node> res = new ArrayList<Node>(joinVars.size());
+		for (Iterator<Var> i = joinVars.iterator(); i.hasNext();)
+			res.add(b.get(i.next()));
+		return res;
+	}
+
+	private List<Node> key(Binding b) {
+		List<Node> key = new ArrayList<Node>(joinVars.size());
+		for (Iterator<Var> i = joinVars.iterator(); i.hasNext();) {
+			Node n = b.get(i.next());
+			if (n == null)
+				return null;
+			key.add(n);
+		}
+		return key;
+	}
+
+	private List<Binding> merge(Binding solution) {
+		List<Binding> res = new ArrayList<Binding>();
+
+		if (index != null) {
+			List<Node> key = key(solution);
+			List<Binding> parents = (key != null ? index.get(key) : null);
+			if (parents != null)
+				for (Iterator<Binding> i = parents.iterator(); i.hasNext();)
+					res.add(Algebra.merge(i.next(), solution));
+			return res;
+		}
+
+		for (Iterator<Binding> i = batch.iterator(); i.hasNext();) {
+			Binding parent = i.next();
+			if (Algebra.compatible(parent, solution))
+				res.add(Algebra.merge(parent, solution));
+		}
+		return res;
+	}
+
+	private void closeCurrent() {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+
+	protected void requestSubCancel() {
+		QueryIterator it = current;
+		if (it != null)
+			it.cancel();
+	}
+
+	protected void closeSubIterator() {
+		closeCurrent();
+	}
+
+	protected void details(IndentedWriter out, SerializationContext sCxt) {
+		out.print("VirtBoundJoin " + batchSize);
+	}
+
+}
@@ -0,0 +1,358 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.util.FileUtils;
+
+/**
+ * Loads RDF text into a graph through Virtuoso's own parsers,
+ * DB.DBA.TTLP(_MT) for N-Triples and Turtle and
+ * DB.DBA.RDF_LOAD_RDFXML(_MT) for RDF/XML. The document is sent as text and
+ * parsed on the server, which is much faster than binding every triple.
+ *
+ * N-Triples are sent in chunks of about chunkSize characters cut at line
+ * boundaries. Blank node labels are scoped to a single call, so from the
+ * first line that contains "_:" on the rest of the file is sent as one
+ * chunk. Turtle and RDF/XML cannot be cut safely and are sent as one
+ * document. A document or last chunk of more than maxDocumentSize
+ * characters is refused; a local file is checked before anything is sent.
+ * With threads &gt; 0 the _MT variants are used, which parse on
+ * that many server threads with the given log mode.
+ *
+ * Each chunk is loaded in its own call, so a failed load leaves the chunks
+ * before it in the graph. Graph listeners are not notified of the loaded
+ * triples.
+ */
+public class VirtBulkLoader {
+
+	public enum Format {
+		NTRIPLES, TURTLE, RDFXML;
+
+		/**
+		 * The format of a Jena language name such as "N-TRIPLE", "TURTLE" or
+		 * "RDF/XML", or null if the server has no loader for it.
+		 */
+		public static Format forLang(String lang) {
+			if (lang == null)
+				return null;
+			String l = lang.toUpperCase();
+			if (l.equals("N-TRIPLE") || l.equals("N-TRIPLES")
+					|| l.equals("NT") || l.equals("NTRIPLES"))
+				return NTRIPLES;
+			if (l.equals("TURTLE") || l.equals("TTL") || l.equals("N3"))
+				return TURTLE;
+			if (l.equals("RDF/XML") || l.equals("RDF/XML-ABBREV")
+					|| l.equals("RDFXML"))
+				return RDFXML;
+			return null;
+		}
+	}
+
+	/**
+	 * Told after every chunk sent.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param chars
+		 *            characters loaded so far
+		 * @param triples
+		 *            N-Triples lines loaded so far, 0 for other formats
+		 */
+		void progress(long chars, long triples);
+	}
+
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_MAX_DOCUMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String TTLP = "DB.DBA.TTLP(?, ?, ?, ?)";
+	private static final String TTLP_MT = "DB.DBA.TTLP_MT(?, ?, ?, ?, ?, ?)";
+	private static final String RDFXML = "DB.DBA.RDF_LOAD_RDFXML(?, ?, ?)";
+	private static final String RDFXML_MT = "DB.DBA.RDF_LOAD_RDFXML_MT(?, ?, ?, ?, ?)";
+
+	private VirtGraph graph;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int maxDocumentSize = DEFAULT_MAX_DOCUMENT_SIZE;
+	private int threads = 0;
+	private int logMode = 1;
+	private int flags = 0;
+	private ProgressListener listener = null;
+
+	public VirtBulkLoader(VirtGraph _graph) {
+		graph = _graph;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Set the number of characters of N-Triples sent in one call.
+	 */
+	public void setChunkSize(int _chunkSize) {
+		if (_chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize < 1");
+		chunkSize = _chunkSize;
+	}
+
+	public int getMaxDocumentSize() {
+		return maxDocumentSize;
+	}
+
+	/**
+	 * Set the largest number of characters sent in one call when the text
+	 * can not be cut into chunks.
+	 */
+	public void setMaxDocumentSize(int _maxDocumentSize) {
+		maxDocumentSize = _maxDocumentSize;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of server threads that parse a chunk, 0 for the single
+	 * threaded loaders.
+	 */
+	public void setThreads(int _threads) {
+		threads = _threads;
+	}
+
+	public int getLogMode() {
+		return logMode;
+	}
+
+	/**
+	 * Set the log_mode argument of the _MT loaders: 0 no transaction log, 1
+	 * logged, 2 row autocommit without log.
+	 */
+	public void setLogMode(int _logMode) {
+		logMode = _logMode;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Set the flags argument of TTLP, e.g. 255 for lax parsing.
+	 */
+	public void setFlags(int _flags) {
+		flags = _flags;
+	}
+
+	public void setProgressListener(ProgressListener _listener) {
+		listener = _listener;
+	}
+
+	/**
+	 * Can the local file f in the given format be loaded without sending
+	 * more than maxDocumentSize characters in one call? For N-Triples this
+	 * reads the file to look for blank nodes.
+	 */
+	public boolean fits(File f, Format fmt) {
+		if (f.length() <= maxDocumentSize)
+			return true;
+		if (fmt != Format.NTRIPLES)
+			return false;
+		BufferedReader r = null;
+		try {
+			r = new BufferedReader(new InputStreamReader(
+					new FileInputStream(f), FileUtils.encodingUTF8));
+			String line;
+			while ((line = r.readLine()) != null)
+				if (line.indexOf("_:") >= 0)
+					return false;
+			return true;
+		} catch (IOException e) {
+			throw new JenaException(e);
+		} finally {
+			try {
+				if (r != null)
+					r.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Load a local file into the graph, the format guessed from its
+	 * extension if lang is null. Throws before sending anything if the file
+	 * does not fit.
+	 */
+	public void load(File f, String lang) {
+		if (lang == null)
+			lang = FileUtils.guessLang(f.getName(), FileUtils.langXML);
+		Format fmt = Format.forLang(lang);
+		if (fmt == null)
+			throw new JenaException("No bulk loader for " + lang);
+		if (!fits(f, fmt))
+			throw new JenaException(f + " can not be sent in chunks of at most "
+					+ maxDocumentSize + " characters: "
+					+ (fmt == Format.NTRIPLES ? "it has blank nodes"
+							: fmt + " can not be cut")
+					+ "; raise maxDocumentSize or split the file");
+		InputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			load(in, fmt, f.toURI().toString());
+		} catch (IOException e) {
+			throw new JenaException(e);
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Load UTF-8 text in the given format into the graph.
+	 */
+	public void load(InputStream in, Format fmt, String base) {
+		try {
+			load(new InputStreamReader(in, FileUtils.encodingUTF8), fmt, base);
+		} catch (IOException e) {
+			throw new JenaException(e);
+		}
+	}
+
+	public void load(Reader in, Format fmt, String base) {
+		if (base == null)
+			base = "";
+		Connection c = null;
+		PreparedStatement ps = null;
+		try {
+			c = graph.acquireConnection();
+			ps = graph.prepareStatement(c, sqlFor(fmt));
+			if (fmt == Format.NTRIPLES)
+				loadLines(ps, new BufferedReader(in), base);
+			else
+				loadWhole(ps, in, fmt, base);
+		} catch (Exception e) {
+			throw new JenaException(e);
+		} finally {
+			try {
+				if (ps != null)
+					ps.close();
+			} catch (Exception e) {
+			}
+			graph.releaseConnection(c);
+			graph.sizeUnknown();
+		}
+	}
+
+	private String sqlFor(Format fmt) {
+		if (fmt == Format.RDFXML)
+			return threads > 0 ? RDFXML_MT : RDFXML;
+		return threads > 0 ? TTLP_MT : TTLP;
+	}
+
+	private void loadLines(PreparedStatement ps, BufferedReader r, String base)
+			throws IOException, SQLException {
+		StringBuilder sb = new StringBuilder();
+		long chars = 0;
+		long triples = 0;
+		long pending = 0;
+		boolean blanks = false;
+		String line;
+
+		while ((line = r.readLine()) != null) {
+			sb.append(line).append('\n');
+			String s = line.trim();
+			if (s.length() > 0 && s.charAt(0) != '#')
+				pending++;
+			// may also match inside a literal, which only stops the cutting
+			if (!blanks && line.indexOf("_:") >= 0)
+				blanks = true;
+			if (blanks)
+				checkSize(sb);
+			else if (sb.length() >= chunkSize) {
+				chars += sb.length();
+				triples += pending;
+				send(ps, sb.toString(), Format.NTRIPLES, base);
+				sb.setLength(0);
+				pending = 0;
+				progress(chars, triples);
+			}
+		}
+		if (sb.length() > 0) {
+			send(ps, sb.toString(), Format.NTRIPLES, base);
+			progress(chars + sb.length(), triples + pending);
+		}
+	}
+
+	private void loadWhole(PreparedStatement ps, Reader r, Format fmt,
+			String base) throws IOException, SQLException {
+		StringBuilder sb = new StringBuilder();
+		char[] buf = new char[8192];
+		int n;
+		while ((n = r.read(buf)) != -1) {
+			sb.append(buf, 0, n);
+			checkSize(sb);
+		}
+		send(ps, sb.toString(), fmt, base);
+		progress(sb.length(), 0);
+	}
+
+	private void checkSize(StringBuilder sb) {
+		if (sb.length() > maxDocumentSize)
+			throw new JenaException("Document can not be cut and is larger than "
+					+ maxDocumentSize + " characters");
+	}
+
+	private void send(PreparedStatement ps, String text, Format fmt,
+			String base) throws SQLException {
+		int i = 1;
+		ps.setString(i++, text);
+		ps.setString(i++, base);
+		ps.setString(i++, graph.getGraphName());
+		if (fmt != Format.RDFXML)
+			ps.setInt(i++, flags);
+		if (threads > 0) {
+			ps.setInt(i++, logMode);
+			ps.setInt(i++, threads);
+		}
+		ps.execute();
+	}
+
+	private void progress(long chars, long triples) {
+		if (listener != null)
+			listener.progress(chars, triples);
+	}
+
+}
@@ -57,6 +57,7 @@ public class VirtBulkUpdateHandler extends SimpleBulkUpdateHandler {
 		VirtGraph _graph = (VirtGraph) this.graph;
 		List list = notify ? new ArrayList() : null;
 
+		boolean entered = _graph.enterTransaction();
 		try {
 			boolean autoCommit = _graph.getConnection().getAutoCommit();
 			if (autoCommit)
@@ -68,6 +69,9 @@ public class VirtBulkUpdateHandler extends SimpleBulkUpdateHandler {
 			}
 		} catch (Exception e) {
 			throw new JenaException("Couldn't create transaction:" + e);
+		} finally {
+			if (entered)
+				_graph.leaveTransaction();
 		}
 		if (notify)
 			manager.notifyAddIterator(graph, list);
@@ -88,6 +92,7 @@ public class VirtBulkUpdateHandler extends SimpleBulkUpdateHandler {
 		VirtGraph _graph = (VirtGraph) this.graph;
 		List list = notify ? new ArrayList() : null;
 
+		boolean entered = _graph.enterTransaction();
 		try {
 			boolean autoCommit = _graph.getConnection().getAutoCommit();
 			if (autoCommit)
@@ -99,6 +104,9 @@ public class VirtBulkUpdateHandler extends SimpleBulkUpdateHandler {
 			}
 		} catch (Exception e) {
 			throw new JenaException("Couldn't create transaction:" + e);
+		} finally {
+			if (entered)
+				_graph.leaveTransaction();
 		}
 		if (notify)
 			manager.notifyDeleteIterator(graph, list);
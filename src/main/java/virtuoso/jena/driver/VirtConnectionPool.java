@@ -0,0 +1,171 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded pool of connections opened through VirtGraph.openConnection().
+ * Every pooled connection has its own statement cache. acquire() blocks
+ * while all connections are leased.
+ */
+public class VirtConnectionPool {
+
+	private VirtGraph graph;
+	private int maxSize;
+	private int total = 0;
+	private boolean closed = false;
+
+	private LinkedList<Connection> idle = new LinkedList<Connection>();
+	private Map<Connection, VirtStatementCache> caches = new IdentityHashMap<Connection, VirtStatementCache>();
+
+	public VirtConnectionPool(VirtGraph _graph, int _maxSize) {
+		graph = _graph;
+		maxSize = _maxSize;
+	}
+
+	public Connection acquire() throws SQLException {
+		synchronized (this) {
+			while (true) {
+				if (closed)
+					throw new SQLException("Connection pool is closed");
+				if (!idle.isEmpty())
+					return idle.removeFirst();
+				if (total < maxSize) {
+					total++;
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException(
+							"Interrupted while waiting for a connection");
+				}
+			}
+		}
+
+		// open the new connection outside of the pool lock
+		Connection c = null;
+		try {
+			c = graph.openConnection();
+		} finally {
+			synchronized (this) {
+				if (c == null) {
+					total--;
+					notify();
+				} else {
+					caches.put(c, new VirtStatementCache(graph, c,
+							graph.getStatementCacheSize()));
+				}
+			}
+		}
+		return c;
+	}
+
+	public void release(Connection c) {
+		boolean discard = false;
+
+		try {
+			if (c.isClosed()) {
+				discard = true;
+			} else if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			discard = true;
+		}
+
+		synchronized (this) {
+			if (!closed && !discard) {
+				idle.addFirst(c);
+				notify();
+				return;
+			}
+		}
+		discard(c);
+	}
+
+	public synchronized VirtStatementCache getStatementCache(Connection c) {
+		return caches.get(c);
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int getActiveCount() {
+		return total - idle.size();
+	}
+
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	synchronized List<VirtStatementCache> getStatementCaches() {
+		return new ArrayList<VirtStatementCache>(caches.values());
+	}
+
+	/**
+	 * Close all idle connections. Leased connections are closed when they
+	 * are released.
+	 */
+	public void close() {
+		List<Connection> toClose;
+
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<Connection>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		for (Iterator<Connection> i = toClose.iterator(); i.hasNext();)
+			discard(i.next());
+	}
+
+	private void discard(Connection c) {
+		VirtStatementCache cache;
+
+		synchronized (this) {
+			cache = caches.remove(c);
+			total--;
+			notify();
+		}
+		if (cache != null)
+			cache.clear();
+		try {
+			c.close();
+		} catch (Exception e) {
+		}
+	}
+
+}
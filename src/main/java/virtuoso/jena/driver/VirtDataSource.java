@@ -22,10 +22,19 @@
  */
 package virtuoso.jena.driver;
 
+import java.io.InputStream;
+import java.sql.Connection;
 import java.sql.ResultSet;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.jena.riot.Lang;
 
 import virtuoso.jdbc4.VirtuosoDataSource;
 
@@ -36,6 +45,7 @@ import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.LabelExistsException;
 import com.hp.hpl.jena.query.ReadWrite;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
 import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.shared.Lock;
 import com.hp.hpl.jena.sparql.core.DatasetGraph;
@@ -49,6 +59,25 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 	 */
 	Model defaultModel = null;
 
+	static final long DEFAULT_GRAPH_CACHE_TTL = 2000;
+	private static final int GRAPH_CACHE_SIZE = 1024;
+
+	// graph name -> expiry time of the existence check, negated if the
+	// graph was found empty
+	private final Map<String, Long> graphCache = new ConcurrentHashMap<String, Long>();
+	private volatile long graphCacheTTL = DEFAULT_GRAPH_CACHE_TTL;
+
+	// named graph views by name, the least recently used dropped beyond
+	// VIEW_CACHE_SIZE; a dropped view stays usable until the dataset closes
+	private static final int VIEW_CACHE_SIZE = 256;
+	@SuppressWarnings("serial")
+	private final Map<String, VirtGraph> views = new LinkedHashMap<String, VirtGraph>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, VirtGraph> eldest) {
+			return size() > VIEW_CACHE_SIZE;
+		}
+	};
+
 	public VirtDataSource() {
 		super();
 	}
@@ -57,15 +86,13 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 		super(_graphName, _ds);
 	}
 
+	/**
+	 * A dataset over the connection of g. Like a named graph view it shares
+	 * the connection, pool and settings of g and does not close them.
+	 */
 	protected VirtDataSource(VirtGraph g) {
-		this.graphName = g.getGraphName();
+		super(g.getGraphName(), g);
 		setReadFromAllGraphs(g.getReadFromAllGraphs());
-		this.url_hostlist = g.getGraphUrl();
-		this.user = g.getGraphUser();
-		this.password = g.getGraphPassword();
-		this.roundrobin = g.roundrobin;
-		setFetchSize(g.getFetchSize());
-		this.connection = g.getConnection();
 	}
 
 	public VirtDataSource(String url_hostlist, String user, String password) {
@@ -83,30 +110,19 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 	/** Set a named graph. */
 	public void addNamedModel(String name, Model model)
 			throws LabelExistsException {
-		String query = "select count(*) from (sparql select * where { graph `iri(??)` { ?s ?p ?o }})f";
-		ResultSet rs = null;
-		int ret = 0;
+		java.sql.PreparedStatement ps = null;
 
 		checkOpen();
-		try {
-			java.sql.PreparedStatement ps = prepareStatement(query);
-			ps.setString(1, name);
-			rs = ps.executeQuery();
-			if (rs.next())
-				ret = rs.getInt(1);
-			rs.close();
-			ps.close();
-		} catch (Exception e) {
-			throw new JenaException(e);
-		}
+		boolean exists = graphExists(name);
 
 		try {
-			if (ret != 0)
+			if (exists)
 				throw new LabelExistsException("A model with ID '" + name
 						+ "' already exists.");
 			Graph g = model.getGraph();
 			int count = 0;
-			java.sql.PreparedStatement ps = prepareStatement(sinsert);
+			long bytes = 0;
+			ps = prepareCachedStatement(sinsert);
 
 			for (Iterator i = g.find(Node.ANY, Node.ANY, Node.ANY); i.hasNext();) {
 				Triple t = (Triple) i.next();
@@ -117,20 +133,126 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 				bindObject(ps, 4, t.getObject());
 				ps.addBatch();
 				count++;
-				if (count > BATCH_SIZE) {
-					ps.executeBatch();
-					ps.clearBatch();
+				bytes += VirtBatchSizer.estimate(t);
+				if (batchSizer.isFull(count, bytes)) {
+					batchSizer.execute(ps, count);
 					count = 0;
+					bytes = 0;
 				}
 			}
-			if (count > 0) {
-				ps.executeBatch();
-				ps.clearBatch();
-			}
-			ps.close();
+			if (count > 0)
+				batchSizer.execute(ps, count);
+		} catch (Exception e) {
+			throw new JenaException(e);
+		} finally {
+			releaseCachedStatement(sinsert, ps);
+			graphCache.remove(name);
+		}
+	}
+
+	/**
+	 * Set a named graph, loading it over several connections in parallel.
+	 * The load is not atomic, see VirtParallelLoader.
+	 */
+	public VirtParallelLoader.Report addNamedModel(String name, Model model,
+			int workers) throws LabelExistsException {
+		checkOpen();
+		if (graphExists(name))
+			throw new LabelExistsException("A model with ID '" + name
+					+ "' already exists.");
+		VirtParallelLoader loader = new VirtParallelLoader(this, workers);
+		try {
+			return loader.load(name,
+					model.getGraph().find(Node.ANY, Node.ANY, Node.ANY));
+		} finally {
+			graphCache.remove(name);
+		}
+	}
+
+	/**
+	 * Probe for a triple in the graph named name. The answer is cached for
+	 * getGraphCacheTTL() milliseconds; changes made through this dataset or
+	 * its named graph views drop the cached entry, changes made elsewhere
+	 * may be seen late.
+	 */
+	private boolean graphExists(String name) {
+		long now = System.currentTimeMillis();
+		Long expires = graphCache.get(name);
+		if (expires != null && Math.abs(expires) > now)
+			return expires > 0;
+
+		String query = "sparql define input:storage \"\" select 1 where { graph `iri(??)` { ?s ?p ?o }} limit 1";
+		Connection c = null;
+		java.sql.PreparedStatement ps = null;
+		boolean ret;
+
+		try {
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, query);
+			ps.setString(1, name);
+			ResultSet rs = ps.executeQuery();
+			ret = rs.next();
+			rs.close();
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			releaseCachedStatement(c, query, ps);
+			releaseConnection(c);
+		}
+
+		if (graphCacheTTL > 0) {
+			if (graphCache.size() >= GRAPH_CACHE_SIZE)
+				graphCache.clear();
+			// the sign of the expiry time tells whether the graph exists
+			graphCache.put(name, ret ? now + graphCacheTTL
+					: -(now + graphCacheTTL));
 		}
+		return ret;
+	}
+
+	public long getGraphCacheTTL() {
+		return graphCacheTTL;
+	}
+
+	/**
+	 * Set how long, in milliseconds, the answer of a graph existence check
+	 * is reused. 0 disables the cache.
+	 */
+	public void setGraphCacheTTL(long ttl) {
+		graphCacheTTL = ttl;
+		graphCache.clear();
+	}
+
+	/**
+	 * Load quads of any number of graphs in batches, see VirtQuadLoader.
+	 *
+	 * @return the number of quads loaded
+	 */
+	public long loadQuads(Iterator<Quad> it) {
+		checkOpen();
+		return new VirtQuadLoader(this).load(it);
+	}
+
+	/**
+	 * Parse an N-Quads or TriG stream and load its quads, see
+	 * VirtQuadLoader.
+	 *
+	 * @return the number of quads loaded
+	 */
+	public long loadQuads(InputStream in, Lang lang) {
+		checkOpen();
+		return new VirtQuadLoader(this).load(in, lang, null);
+	}
+
+	void graphChanged(String name) {
+		graphCache.remove(name);
+		super.graphChanged(name);
+	}
+
+	// forget what is known about graphs after a change of unknown extent
+	void graphsChanged() {
+		graphCache.clear();
+		sizeUnknown();
 	}
 
 	/** Remove a named graph. */
@@ -144,6 +266,8 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 			stmt.close();
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			graphCache.remove(name);
 		}
 	}
 
@@ -166,6 +290,70 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 		}
 	}
 
+	/**
+	 * Change a named graph for another using the same name, sending the new
+	 * triples without holding locks on the named graph. The model is loaded
+	 * into a temporary staging graph with a VirtParallelLoader of workers
+	 * connections; then one SPARQL MOVE replaces the named graph by the
+	 * staging graph on the server, or, for an empty model, the named graph
+	 * is cleared. Readers see the old graph until the MOVE commits.
+	 * 
+	 * This is not a swap: the MOVE deletes the quads of the old graph and
+	 * rewrites those of the staging graph, so its duration and the locks it
+	 * holds grow with the size of both graphs. What is saved over
+	 * replaceNamedModel(String, Model) is the time of sending the triples
+	 * inside the transaction, not the time of replacing them.
+	 * 
+	 * If the load or the MOVE fails the staging graph is dropped and the
+	 * named graph is left untouched.
+	 */
+	public void reloadNamedModel(String name, Model model, int workers) {
+		checkOpen();
+		String staging = "urn:virt-jena:staging:" + UUID.randomUUID();
+
+		VirtParallelLoader.Report report;
+		try {
+			report = new VirtParallelLoader(this, workers).load(staging, model
+					.getGraph().find(Node.ANY, Node.ANY, Node.ANY));
+		} catch (JenaException e) {
+			clearStaging(staging);
+			throw new JenaException("Could not reload model:", e);
+		}
+
+		Connection c = null;
+		try {
+			c = acquireConnection();
+			java.sql.Statement stmt = createStatement(c);
+			// nothing was staged, and MOVE fails on a missing graph
+			if (report.getTriples() == 0)
+				stmt.execute("sparql clear graph <" + name + ">");
+			else
+				stmt.execute("sparql move <" + staging + "> to <" + name
+						+ ">");
+			stmt.close();
+		} catch (Exception e) {
+			clearStaging(staging);
+			throw new JenaException("Could not reload model:", e);
+		} finally {
+			releaseConnection(c);
+			graphsChanged();
+			synchronized (views) {
+				VirtGraph v = views.get(name);
+				if (v != null)
+					v.sizeUnknown();
+			}
+		}
+	}
+
+	private void clearStaging(String staging) {
+		try {
+			java.sql.Statement stmt = createStatement();
+			stmt.execute("sparql drop silent graph <" + staging + ">");
+			stmt.close();
+		} catch (Exception e) {
+		}
+	}
+
 	/** Get the default graph as a Jena Model */
 	public Model getDefaultModel() {
 		return defaultModel;
@@ -173,37 +361,39 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 
 	/** Get a graph by name as a Jena Model */
 	public Model getNamedModel(String name) {
-		try {
-			VirtuosoDataSource _ds = getDataSource();
-			if (_ds != null)
-				return new VirtModel(new VirtGraph(name, _ds));
-			else
-				return new VirtModel(new VirtGraph(name, this.getGraphUrl(),
-						this.getGraphUser(), this.getGraphPassword()));
-		} catch (Exception e) {
-			throw new JenaException(e);
+		return new VirtModel(getNamedGraph(name));
+	}
+
+	/**
+	 * The view of the graph named name, created on first use. Views share
+	 * this dataset's connection, pool and statement cache and are closed
+	 * with it.
+	 */
+	public VirtGraph getNamedGraph(String name) {
+		checkOpen();
+		synchronized (views) {
+			VirtGraph g = views.get(name);
+			if (g == null || g.isClosed()) {
+				g = new VirtGraph(name, this);
+				views.put(name, g);
+			}
+			return g;
+		}
+	}
+
+	public void close() {
+		synchronized (views) {
+			for (VirtGraph g : views.values())
+				g.close();
+			views.clear();
 		}
+		super.close();
 	}
 
 	/** Does the dataset contain a model with the name supplied? */
 	public boolean containsNamedModel(String name) {
-		String query = "select count(*) from (sparql select * where { graph `iri(??)` { ?s ?p ?o }})f";
-		ResultSet rs = null;
-		int ret = 0;
-
 		checkOpen();
-		try {
-			java.sql.PreparedStatement ps = prepareStatement(query);
-			ps.setString(1, name);
-			rs = ps.executeQuery();
-			if (rs.next())
-				ret = rs.getInt(1);
-			rs.close();
-			ps.close();
-		} catch (Exception e) {
-			throw new JenaException(e);
-		}
-		return (ret != 0);
+		return graphExists(name);
 	}
 
 	/** List the names */
@@ -228,13 +418,9 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 		}
 	}
 
-	Lock lock = null;
-
 	/** Get the lock for this dataset */
 	public Lock getLock() {
-		if (lock == null)
-			lock = new com.hp.hpl.jena.shared.LockNone();
-		return lock;
+		return super.getLock();
 	}
 
 	/** Get the dataset in graph form */
@@ -255,16 +441,11 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 		}
 
 		public Graph getGraph(Node graphNode) {
-			try {
-				return new VirtGraph(graphNode.toString(), vd.getGraphUrl(),
-						vd.getGraphUser(), vd.getGraphPassword());
-			} catch (Exception e) {
-				throw new JenaException(e);
-			}
+			return vd.getNamedGraph(graphNode.toString());
 		}
 
 		public boolean containsGraph(Node graphNode) {
-			return containsNamedModel(graphNode.toString());
+			return vd.containsNamedModel(graphNode.toString());
 		}
 
 		public Iterator<Node> listGraphNodes() {
@@ -300,64 +481,127 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 			vd.close();
 		}
 
-		public void add(Quad arg0) {
-			// TODO Auto-generated method stub
-
+		public void add(Quad quad) {
+			add(Collections.singletonList(quad).iterator());
 		}
 
-		public void add(Node arg0, Node arg1, Node arg2, Node arg3) {
-			// TODO Auto-generated method stub
+		public void add(Node g, Node s, Node p, Node o) {
+			add(new Quad(g, s, p, o));
+		}
 
+		/**
+		 * Insert quads into their graphs, batched in one statement whatever
+		 * graphs they belong to.
+		 */
+		public void add(Iterator<Quad> it) {
+			write(sinsert, it);
 		}
 
-		public void addGraph(Node arg0, Graph arg1) {
-			// TODO Auto-generated method stub
+		public void addGraph(Node graphNode, Graph graph) {
+			final Node g = graphNode;
+			final Iterator<Triple> it = graph.find(Node.ANY, Node.ANY,
+					Node.ANY);
+			add(new Iterator<Quad>() {
+				public boolean hasNext() {
+					return it.hasNext();
+				}
 
-		}
+				public Quad next() {
+					return new Quad(g, it.next());
+				}
 
-		public boolean contains(Quad arg0) {
-			// TODO Auto-generated method stub
-			return false;
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			});
 		}
 
-		public boolean contains(Node arg0, Node arg1, Node arg2, Node arg3) {
-			// TODO Auto-generated method stub
-			return false;
+		public void delete(Quad quad) {
+			delete(Collections.singletonList(quad).iterator());
 		}
 
-		public void delete(Quad arg0) {
-			// TODO Auto-generated method stub
+		public void delete(Node g, Node s, Node p, Node o) {
+			delete(new Quad(g, s, p, o));
+		}
 
+		public void delete(Iterator<Quad> it) {
+			write(sdelete, it);
 		}
 
-		public void delete(Node arg0, Node arg1, Node arg2, Node arg3) {
-			// TODO Auto-generated method stub
+		public void deleteAny(Node g, Node s, Node p, Node o) {
+			g = concrete(g);
+			s = concrete(s);
+			p = concrete(p);
+			o = concrete(o);
 
-		}
+			if (g != null && !Quad.isUnionGraph(g) && s == null && p == null
+					&& o == null) {
+				removeGraph(g);
+				return;
+			}
 
-		public void deleteAny(Node arg0, Node arg1, Node arg2, Node arg3) {
-			// TODO Auto-generated method stub
+			String pattern = "graph " + graphPattern(g) + " { "
+					+ (s != null ? Node2Str(s) : "?s") + " "
+					+ (p != null ? Node2Str(p) : "?p") + " "
+					+ (o != null ? Node2Str(o) : "?o") + " }";
+			String query = "sparql delete { " + pattern + " } where { "
+					+ pattern + " }";
 
+			vd.checkOpen();
+			Connection c = null;
+			try {
+				c = vd.acquireConnection();
+				java.sql.Statement stmt = vd.createStatement(c);
+				stmt.execute(query);
+				stmt.close();
+			} catch (Exception e) {
+				throw new DeleteDeniedException(e.toString());
+			} finally {
+				vd.releaseConnection(c);
+				changed();
+			}
 		}
 
 		public Iterator<Quad> find() {
-			// TODO Auto-generated method stub
-			return null;
+			return find(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
 		}
 
-		public Iterator<Quad> find(Quad arg0) {
-			// TODO Auto-generated method stub
-			return null;
+		public Iterator<Quad> find(Quad quad) {
+			return find(quad.getGraph(), quad.getSubject(),
+					quad.getPredicate(), quad.getObject());
 		}
 
-		public Iterator<Quad> find(Node arg0, Node arg1, Node arg2, Node arg3) {
-			// TODO Auto-generated method stub
-			return null;
+		/**
+		 * Quads matching the pattern in any graph, the dataset's default
+		 * graph included under its own name.
+		 */
+		public Iterator<Quad> find(Node g, Node s, Node p, Node o) {
+			return query(g, s, p, o, false, 0);
 		}
 
-		public Iterator<Quad> findNG(Node arg0, Node arg1, Node arg2, Node arg3) {
-			// TODO Auto-generated method stub
-			return null;
+		/**
+		 * Quads matching the pattern in the graphs other than the dataset's
+		 * default graph.
+		 */
+		public Iterator<Quad> findNG(Node g, Node s, Node p, Node o) {
+			g = concrete(g);
+			if (g != null && Quad.isDefaultGraph(g))
+				return Collections.<Quad> emptyList().iterator();
+			return query(g, s, p, o, true, 0);
+		}
+
+		public boolean contains(Quad quad) {
+			return contains(quad.getGraph(), quad.getSubject(),
+					quad.getPredicate(), quad.getObject());
+		}
+
+		public boolean contains(Node g, Node s, Node p, Node o) {
+			VirtQuadIter it = query(g, s, p, o, false, 1);
+			try {
+				return it.hasNext();
+			} finally {
+				it.close();
+			}
 		}
 
 		public Context getContext() {
@@ -366,13 +610,115 @@ public class VirtDataSource extends VirtGraph implements Dataset {
 		}
 
 		public boolean isEmpty() {
-			// TODO Auto-generated method stub
-			return false;
+			return !contains(Node.ANY, Node.ANY, Node.ANY, Node.ANY);
 		}
 
-		public void removeGraph(Node arg0) {
-			// TODO Auto-generated method stub
+		public void removeGraph(Node graphNode) {
+			vd.removeNamedModel(graphName(graphNode));
+			vd.sizeUnknown();
+		}
+
+		// null for a wildcard
+		private Node concrete(Node n) {
+			return (n == null || Node.ANY.equals(n) || n.isVariable()) ? null
+					: n;
+		}
+
+		// the name of the graph a quad of g is stored in
+		private String graphName(Node g) {
+			if (g == null || Quad.isDefaultGraph(g))
+				return vd.getGraphName();
+			return g.isBlank() ? "_:" + g : g.toString();
+		}
+
+		private String graphPattern(Node g) {
+			if (g == null || Quad.isUnionGraph(g))
+				return "?g";
+			return "<" + graphName(g) + ">";
+		}
+
+		private VirtQuadIter query(Node g, Node s, Node p, Node o,
+				boolean namedOnly, int limit) {
+			g = concrete(g);
+			s = concrete(s);
+			p = concrete(p);
+			o = concrete(o);
+			if (g != null && Quad.isUnionGraph(g))
+				g = null;
+
+			StringBuilder sb = new StringBuilder(
+					"sparql define input:storage \"\" select * where { graph ");
+			sb.append(graphPattern(g)).append(" { ");
+			sb.append(s != null ? Node2Str(s) : "?s").append(" ");
+			sb.append(p != null ? Node2Str(p) : "?p").append(" ");
+			sb.append(o != null ? Node2Str(o) : "?o").append(" }");
+			if (g == null && namedOnly)
+				sb.append(" filter (?g != <" + vd.getGraphName() + ">)");
+			sb.append(" }");
+			if (limit > 0)
+				sb.append(" limit ").append(limit);
+
+			// quads of the default graph are reported under its marker
+			Node gOut = g;
+			if (g != null && Quad.isDefaultGraph(g))
+				gOut = Quad.defaultGraphIRI;
+
+			vd.checkOpen();
+			Connection c = null;
+			try {
+				c = vd.acquireConnection();
+				java.sql.Statement stmt = vd.createStatement(c);
+				return new VirtQuadIter(vd, stmt.executeQuery(sb.toString()),
+						stmt, c, gOut, s, p, o);
+			} catch (Exception e) {
+				vd.releaseConnection(c);
+				throw new JenaException(e);
+			}
+		}
+
+		private void write(String sql, Iterator<Quad> it) {
+			Connection c = null;
+			java.sql.PreparedStatement ps = null;
+			VirtBatchSizer sizer = vd.getBatchSizer();
+
+			vd.checkOpen();
+			try {
+				c = vd.acquireConnection();
+				ps = vd.prepareCachedStatement(c, sql);
+				int count = 0;
+				long bytes = 0;
+
+				while (it.hasNext()) {
+					Quad q = it.next();
+					ps.setString(1, graphName(q.getGraph()));
+					vd.bindSubject(ps, 2, q.getSubject());
+					vd.bindPredicate(ps, 3, q.getPredicate());
+					vd.bindObject(ps, 4, q.getObject());
+					ps.addBatch();
+					count++;
+					bytes += VirtBatchSizer.estimate(q.asTriple());
+
+					if (sizer.isFull(count, bytes)) {
+						sizer.execute(ps, count);
+						count = 0;
+						bytes = 0;
+					}
+				}
+
+				if (count > 0)
+					sizer.execute(ps, count);
+			} catch (Exception e) {
+				throw new JenaException(e);
+			} finally {
+				vd.releaseCachedStatement(c, sql, ps);
+				vd.releaseConnection(c);
+				changed();
+			}
+		}
 
+		// quad writes may touch any graph
+		private void changed() {
+			vd.graphsChanged();
 		}
 
 		public void setDefaultGraph(Graph arg0) {
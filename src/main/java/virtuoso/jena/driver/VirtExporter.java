@@ -0,0 +1,395 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import virtuoso.sql.ExtendedString;
+import virtuoso.sql.RdfBox;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.util.FileUtils;
+
+/**
+ * Streams the triples of a graph to an OutputStream as N-Triples or
+ * N-Quads straight from the JDBC cursor. IRIs, strings and typed literals
+ * are written from the ExtendedString/RdfBox values without creating Node
+ * objects; only unusual values go through VirtGraph.Object2Node.
+ *
+ * export(out, parts) cuts the subjects of the graph into parts ranges of
+ * IRI_ID, see VirtScan.subjectBounds, and exports them in parallel, each on
+ * its own connection. A range is read in pages of subjects taken in index
+ * order, as VirtScan does. Output is written in blocks, so lines of
+ * different ranges never mix but their order is not defined.
+ */
+public class VirtExporter {
+
+	public enum Format {
+		NTRIPLES, NQUADS
+	}
+
+	public static final int DEFAULT_FETCH_SIZE = 10000;
+
+	// bytes buffered per range before they are written to the output
+	private static final int BLOCK_SIZE = 256 * 1024;
+
+	private VirtGraph graph;
+	private Format format = Format.NTRIPLES;
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+
+	public VirtExporter(VirtGraph _graph) {
+		graph = _graph;
+	}
+
+	public VirtExporter(VirtGraph _graph, Format _format) {
+		this(_graph);
+		format = _format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public void setFormat(Format _format) {
+		format = _format;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Set the number of rows fetched from the server in one round trip.
+	 */
+	public void setFetchSize(int _fetchSize) {
+		fetchSize = _fetchSize;
+	}
+
+	/**
+	 * Write the graph to out.
+	 *
+	 * @return the number of triples written
+	 */
+	public long export(OutputStream out) {
+		Connection c = null;
+		try {
+			c = graph.acquireConnection();
+			return new Range(null, null, out).run(c);
+		} catch (Exception e) {
+			throw new JenaException(e);
+		} finally {
+			graph.releaseConnection(c);
+		}
+	}
+
+	/**
+	 * Write the graph to out, exporting parts subject ranges in parallel.
+	 *
+	 * @return the number of triples written
+	 */
+	public long export(final OutputStream out, int parts) {
+		if (parts <= 1)
+			return export(out);
+
+		List<Long> bounds = VirtScan.subjectBounds(graph, parts);
+		final AtomicLong total = new AtomicLong();
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i <= bounds.size(); i++) {
+			final Long lo = (i > 0 ? bounds.get(i - 1) : null);
+			final Long hi = (i < bounds.size() ? bounds.get(i) : null);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					Connection c = null;
+					try {
+						c = graph.openConnection();
+						total.addAndGet(new Range(lo, hi, out).run(c));
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						try {
+							if (c != null)
+								c.close();
+						} catch (Exception e) {
+						}
+					}
+				}
+			}, "VirtExporter-" + i);
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new JenaException(e);
+			}
+		}
+		if (!errors.isEmpty())
+			throw new JenaException("Export failed", errors.get(0));
+		return total.get();
+	}
+
+	private boolean allGraphs() {
+		return graph.getReadFromAllGraphs();
+	}
+
+	/**
+	 * The subjects with an IRI_ID number lo &lt;= id &lt; hi, either bound
+	 * open if null. The whole graph is read with one query, a range page by
+	 * page.
+	 */
+	private class Range {
+		final Long lo;
+		final Long hi;
+		final OutputStream out;
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream(
+				BLOCK_SIZE + 4096);
+		final Writer w;
+		final boolean quads = (format == Format.NQUADS);
+		final boolean graphCol = quads && allGraphs();
+		final String g = (quads && !graphCol ? "<" + graph.getGraphName()
+				+ ">" : null);
+
+		Range(Long _lo, Long _hi, OutputStream _out) throws IOException {
+			lo = _lo;
+			hi = _hi;
+			out = _out;
+			w = new OutputStreamWriter(buf, FileUtils.encodingUTF8);
+		}
+
+		String query() {
+			StringBuilder sb = new StringBuilder(VirtScan.prologue(graph));
+			sb.append(graphCol ? " select ?s ?p ?o ?g" : " select ?s ?p ?o");
+			sb.append(VirtScan.from(graph));
+			sb.append(graphCol ? " where { graph ?g { ?s ?p ?o } }"
+					: " where { ?s ?p ?o }");
+			return sb.toString();
+		}
+
+		long run(Connection c) throws SQLException, IOException {
+			long n = 0;
+			if (lo == null && hi == null) {
+				n = write(c, query());
+			} else {
+				int pageSize = VirtScan.DEFAULT_PAGE_SIZE;
+				List<String> subjects = new ArrayList<String>(pageSize);
+				Long after = null;
+				do {
+					subjects.clear();
+					after = VirtScan.nextSubjects(c, graph, lo, hi, after,
+							pageSize, subjects);
+					if (after != null)
+						n += write(c, VirtScan.triplesQuery(graph, subjects,
+								graphCol));
+				} while (subjects.size() == pageSize);
+			}
+			drain();
+			return n;
+		}
+
+		long write(Connection c, String query) throws SQLException,
+				IOException {
+			Statement st = c.createStatement();
+			long n = 0;
+			try {
+				st.setFetchSize(fetchSize);
+				ResultSet rs = st.executeQuery(query);
+
+				while (rs.next()) {
+					writeNode(rs.getObject(1));
+					w.write(' ');
+					writeNode(rs.getObject(2));
+					w.write(' ');
+					writeNode(rs.getObject(3));
+					if (graphCol) {
+						w.write(' ');
+						writeNode(rs.getObject(4));
+					} else if (g != null) {
+						w.write(' ');
+						w.write(g);
+					}
+					w.write(" .\n");
+					n++;
+					if (buf.size() >= BLOCK_SIZE)
+						drain();
+				}
+				rs.close();
+			} finally {
+				st.close();
+			}
+			return n;
+		}
+
+		void drain() throws IOException {
+			w.flush();
+			synchronized (out) {
+				buf.writeTo(out);
+			}
+			buf.reset();
+		}
+
+		void writeNode(Object o) throws IOException {
+			if (o instanceof ExtendedString) {
+				ExtendedString vs = (ExtendedString) o;
+				String s = vs.toString();
+				if (vs.getIriType() == ExtendedString.IRI
+						&& (vs.getStrType() & 0x01) == 0x01) {
+					if (s.startsWith("_:"))
+						writeBlank(s, 2);
+					else
+						writeIRI(s);
+				} else if (vs.getIriType() == ExtendedString.BNODE) {
+					writeBlank(s, 9); // nodeID://
+				} else {
+					writeString(s);
+				}
+			} else if (o instanceof RdfBox) {
+				RdfBox rb = (RdfBox) o;
+				writeString(rb.toString());
+				String lang = rb.getLang();
+				String type = rb.getType();
+				if (lang != null && lang.length() > 0) {
+					w.write('@');
+					w.write(lang);
+				} else if (type != null) {
+					w.write("^^");
+					writeIRI(type);
+				}
+			} else if (o instanceof Integer || o instanceof Short) {
+				writeTyped(o.toString(), VirtGraph.XSD_INTEGER.getURI());
+			} else if (o instanceof Double) {
+				writeTyped(o.toString(), VirtGraph.XSD_DOUBLE.getURI());
+			} else {
+				writeNode(VirtGraph.Object2Node(o));
+			}
+		}
+
+		void writeNode(Node n) throws IOException {
+			if (n.isURI()) {
+				writeIRI(n.getURI());
+			} else if (n.isBlank()) {
+				writeBlank(n.getBlankNodeLabel(), 0);
+			} else {
+				writeString(n.getLiteralLexicalForm());
+				String lang = n.getLiteralLanguage();
+				String type = n.getLiteralDatatypeURI();
+				if (lang != null && lang.length() > 0) {
+					w.write('@');
+					w.write(lang);
+				} else if (type != null) {
+					w.write("^^");
+					writeIRI(type);
+				}
+			}
+		}
+
+		void writeTyped(String lex, String type) throws IOException {
+			writeString(lex);
+			w.write("^^");
+			writeIRI(type);
+		}
+
+		void writeIRI(String s) throws IOException {
+			w.write('<');
+			for (int i = 0; i < s.length(); i++) {
+				char ch = s.charAt(i);
+				if (ch == '>' || ch == '\\' || ch < 0x20)
+					writeUnicode(ch);
+				else
+					w.write(ch);
+			}
+			w.write('>');
+		}
+
+		// labels are kept when they are valid N-Triples labels, other
+		// characters are written as xHHHH
+		void writeBlank(String s, int from) throws IOException {
+			w.write("_:");
+			for (int i = from; i < s.length(); i++) {
+				char ch = s.charAt(i);
+				if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+						|| (ch >= '0' && ch <= '9' && i > from))
+					w.write(ch);
+				else
+					w.write("x" + Integer.toHexString(0x10000 | ch).substring(1));
+			}
+		}
+
+		void writeString(String s) throws IOException {
+			w.write('"');
+			for (int i = 0; i < s.length(); i++) {
+				char ch = s.charAt(i);
+				switch (ch) {
+				case '"':
+					w.write("\\\"");
+					break;
+				case '\\':
+					w.write("\\\\");
+					break;
+				case '\n':
+					w.write("\\n");
+					break;
+				case '\r':
+					w.write("\\r");
+					break;
+				case '\t':
+					w.write("\\t");
+					break;
+				default:
+					if (ch < 0x20)
+						writeUnicode(ch);
+					else
+						w.write(ch);
+				}
+			}
+			w.write('"');
+		}
+
+		void writeUnicode(char ch) throws IOException {
+			w.write("\\u");
+			w.write(Integer.toHexString(0x10000 | ch).substring(1)
+					.toUpperCase());
+		}
+	}
+
+}
@@ -23,6 +23,7 @@
 
 package virtuoso.jena.driver;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -32,6 +33,7 @@ import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import virtuoso.jdbc4.VirtuosoConnectionPoolDataSource;
 import virtuoso.jdbc4.VirtuosoDataSource;
@@ -40,6 +42,7 @@ import virtuoso.sql.RdfBox;
 
 import com.hp.hpl.jena.datatypes.RDFDatatype;
 import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
 import com.hp.hpl.jena.graph.BulkUpdateHandler;
 import com.hp.hpl.jena.graph.GraphEvents;
 import com.hp.hpl.jena.graph.Node;
@@ -52,16 +55,49 @@ import com.hp.hpl.jena.rdf.model.impl.ModelCom;
 import com.hp.hpl.jena.shared.AddDeniedException;
 import com.hp.hpl.jena.shared.DeleteDeniedException;
 import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.shared.LockMRSW;
 import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.util.FileUtils;
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 import com.hp.hpl.jena.util.iterator.NiceIterator;
 
+/**
+ * Jena graph backed by a Virtuoso quad store.
+ * 
+ * By default all operations share one JDBC connection, so a VirtGraph must
+ * not be used by several threads at once. After setPoolSize(n) the graph can
+ * be read concurrently: every find, contains, size and query execution runs
+ * its own statement on a connection leased from the pool for the lifetime of
+ * its iterator or result set. Writers coordinate with readers through
+ * getLock(), which transactions take in WRITE mode between begin() and
+ * commit()/abort().
+ */
 public class VirtGraph extends GraphBase {
 	static {
 		VirtuosoQueryEngine.register();
 	}
 
 	static public final String DEFAULT = "virt:DEFAULT";
+
+	/**
+	 * How size() is computed.
+	 * <ul>
+	 * <li>EXACT counts the triples with a SPARQL count(*).</li>
+	 * <li>ESTIMATE reads the row count of RDF_QUAD from the statistics in
+	 * DB.DBA.SYS_COL_STAT. Virtuoso keeps no statistics per graph, so this
+	 * only applies when reading from all graphs without inference; otherwise,
+	 * and when there are no statistics, the count is exact.</li>
+	 * <li>CACHED counts once, then follows the adds and deletes made through
+	 * this graph. Duplicate adds and deletes of missing triples are counted,
+	 * and changes made by other clients are not seen, so the result is
+	 * approximate. Pattern deletes and bulk loads drop the cached value.</li>
+	 * </ul>
+	 */
+	public enum SizeMode {
+		EXACT, ESTIMATE, CACHED
+	}
+
 	protected String graphName;
 	protected boolean readFromAllGraphs = false;
 	protected String url_hostlist;
@@ -73,6 +109,18 @@ public class VirtGraph extends GraphBase {
 	protected String ruleSet = null;
 	protected boolean useSameAs = false;
 	protected int queryTimeout = 0;
+	protected boolean parameterizedQueries = false;
+	protected int statementCacheSize = VirtStatementCache.DEFAULT_SIZE;
+	protected VirtBatchSizer batchSizer = new VirtBatchSizer(BATCH_SIZE,
+			false);
+	protected SizeMode sizeMode = SizeMode.EXACT;
+	private final AtomicLong cachedSize = new AtomicLong(-1);
+	protected VirtStatementCache stmtCache = null;
+	protected volatile VirtConnectionPool pool = null;
+	protected VirtGraph parent = null;
+	protected Lock lock = null;
+	private ThreadLocal<Boolean> inTransaction = new ThreadLocal<Boolean>();
+	private ThreadLocal<Connection> pinnedConnection = new ThreadLocal<Connection>();
 	static final String sinsert = "sparql insert into graph iri(??) { `iri(??)` `iri(??)` `bif:__rdf_long_from_batch_params(??,??,??)` }";
 	static final String sdelete = "sparql delete from graph iri(??) {`iri(??)` `iri(??)` `bif:__rdf_long_from_batch_params(??,??,??)`}";
 	static final int BATCH_SIZE = 5000;
@@ -81,6 +129,7 @@ public class VirtGraph extends GraphBase {
 
 	private VirtuosoConnectionPoolDataSource pds = new VirtuosoConnectionPoolDataSource();
 	private VirtuosoDataSource ds;
+	private String jdbcUrl;
 
 	private boolean isDSconnection = false;
 
@@ -115,9 +164,9 @@ public class VirtGraph extends GraphBase {
 			this.graphName = DEFAULT;
 
 		try {
-			connection = _ds.getConnection();
 			isDSconnection = true;
 			ds = _ds;
+			connection = openConnection();
 			ModelCom m = new ModelCom(this); // don't drop is it needed for
 												// initialize internal Jena
 												// classes
@@ -131,6 +180,37 @@ public class VirtGraph extends GraphBase {
 		this(null, _ds);
 	}
 
+	/**
+	 * A view of the graph named _graphName that shares the connection, the
+	 * connection pool, the lock and the transactions of parent and copies
+	 * its settings. Closing the view does not close the connection.
+	 */
+	public VirtGraph(String _graphName, VirtGraph parent) {
+		super();
+
+		this.parent = parent;
+		this.graphName = (_graphName != null ? _graphName : DEFAULT);
+		this.url_hostlist = parent.url_hostlist;
+		this.user = parent.user;
+		this.password = parent.password;
+		this.roundrobin = parent.roundrobin;
+		this.ds = parent.ds;
+		this.pds = parent.pds;
+		this.jdbcUrl = parent.jdbcUrl;
+		this.isDSconnection = parent.isDSconnection;
+		this.prefetchSize = parent.prefetchSize;
+		this.queryTimeout = parent.queryTimeout;
+		this.parameterizedQueries = parent.parameterizedQueries;
+		this.statementCacheSize = parent.statementCacheSize;
+		this.ruleSet = parent.ruleSet;
+		this.useSameAs = parent.useSameAs;
+		this.batchSizer = parent.batchSizer;
+		this.connection = parent.connection;
+		this.lock = parent.getLock();
+		this.inTransaction = parent.inTransaction;
+		this.pinnedConnection = parent.pinnedConnection;
+	}
+
 	public VirtGraph(String graphName, String _url_hostlist, String user,
 			String password, boolean _roundrobin) {
 		super();
@@ -162,17 +242,16 @@ public class VirtGraph extends GraphBase {
 						url = url + "roundrobin=1";
 				}
 				Class.forName("virtuoso.jdbc4.Driver");
-				connection = DriverManager.getConnection(url, user, password);
+				jdbcUrl = url;
 			} else {
 				pds.setServerName(url_hostlist);
 				pds.setUser(user);
 				pds.setPassword(password);
 				pds.setCharset(charset);
 				pds.setRoundrobin(roundrobin);
-				javax.sql.PooledConnection pconn = pds.getPooledConnection();
-				connection = pconn.getConnection();
 				isDSconnection = true;
 			}
+			connection = openConnection();
 
 			ModelCom m = new ModelCom(this); // don't drop is it needed for
 												// initialize internal Jena
@@ -208,8 +287,143 @@ public class VirtGraph extends GraphBase {
 		return this.password;
 	}
 
+	/**
+	 * Return the connection pinned to the calling thread by a transaction, or
+	 * the graph's primary connection.
+	 */
 	public Connection getConnection() {
-		return this.connection;
+		Connection c = pinnedConnection.get();
+		return (c != null ? c : this.connection);
+	}
+
+	/**
+	 * Multiple-reader/single-writer lock shared by this graph and its
+	 * transaction handler.
+	 */
+	public synchronized Lock getLock() {
+		if (lock == null)
+			lock = new LockMRSW();
+		return lock;
+	}
+
+	/**
+	 * Called by the transaction handler on begin(): take the write lock and,
+	 * in pooled mode, pin a connection to the calling thread.
+	 * 
+	 * @return false if the calling thread is already in a transaction
+	 */
+	boolean enterTransaction() {
+		if (inTransaction.get() != null)
+			return false;
+		getLock().enterCriticalSection(Lock.WRITE);
+		inTransaction.set(Boolean.TRUE);
+		try {
+			pinConnection();
+		} catch (RuntimeException e) {
+			leaveTransaction();
+			throw e;
+		}
+		return true;
+	}
+
+	void leaveTransaction() {
+		unpinConnection();
+		if (inTransaction.get() != null) {
+			inTransaction.remove();
+			getLock().leaveCriticalSection();
+		}
+	}
+
+	public int getPoolSize() {
+		return (pool() != null ? pool().getMaxSize() : 0);
+	}
+
+	/**
+	 * Switch the graph into pooled mode. Reads and non-transactional writes
+	 * then lease one of up to sz extra connections for their duration, and
+	 * transactions pin a leased connection to the calling thread. 0 turns
+	 * pooled mode off.
+	 */
+	public synchronized void setPoolSize(int sz) {
+		if (parent != null) {
+			parent.setPoolSize(sz);
+			return;
+		}
+		if (pool != null)
+			pool.close();
+		pool = (sz > 0 ? new VirtConnectionPool(this, sz) : null);
+	}
+
+	// views use the pool of the graph they were created from
+	VirtConnectionPool pool() {
+		return parent != null ? parent.pool() : pool;
+	}
+
+	/**
+	 * Open a new physical connection with the settings this graph was
+	 * created with.
+	 */
+	protected Connection openConnection() throws SQLException {
+		if (ds != null)
+			return ds.getConnection();
+		else if (isDSconnection)
+			return pds.getPooledConnection().getConnection();
+		else
+			return DriverManager.getConnection(jdbcUrl, user, password);
+	}
+
+	/**
+	 * Lease a connection for a single operation: the thread's pinned
+	 * connection, a pooled one in pooled mode, or the primary connection.
+	 * Must be handed back with releaseConnection().
+	 */
+	protected Connection acquireConnection() throws SQLException {
+		checkOpen();
+		Connection c = pinnedConnection.get();
+		if (c != null)
+			return c;
+		VirtConnectionPool p = pool();
+		if (p != null)
+			return p.acquire();
+		return connection;
+	}
+
+	protected void releaseConnection(Connection c) {
+		if (c == null || c == connection || c == pinnedConnection.get())
+			return;
+		VirtConnectionPool p = pool();
+		if (p != null)
+			p.release(c);
+		else
+			try {
+				c.close();
+			} catch (Exception e) {
+			}
+	}
+
+	/**
+	 * In pooled mode, lease a connection and pin it to the calling thread so
+	 * that every operation of a transaction runs on it.
+	 * 
+	 * @return true if a connection was pinned by this call
+	 */
+	protected boolean pinConnection() {
+		if (pool() == null || pinnedConnection.get() != null)
+			return false;
+		try {
+			pinnedConnection.set(acquireConnection());
+		} catch (SQLException e) {
+			throw new JenaException(e);
+		}
+		return true;
+	}
+
+	protected void unpinConnection() {
+		Connection c = pinnedConnection.get();
+		if (c != null) {
+			pinnedConnection.remove();
+			releaseConnection(c);
+		}
 	}
 
 	public int getFetchSize() {
@@ -218,6 +432,7 @@ public class VirtGraph extends GraphBase {
 
 	public void setFetchSize(int sz) {
 		this.prefetchSize = sz;
+		invalidateStatementCache();
 	}
 
 	public int getQueryTimeout() {
@@ -226,12 +441,163 @@ public class VirtGraph extends GraphBase {
 
 	public void setQueryTimeout(int seconds) {
 		this.queryTimeout = seconds;
+		invalidateStatementCache();
+	}
+
+	public boolean getParameterizedQueries() {
+		return this.parameterizedQueries;
+	}
+
+	/**
+	 * When set, initial bindings of queries on this graph are sent as JDBC
+	 * parameters of a cached prepared statement instead of being inlined
+	 * into the query text, so the server compiles each query shape once.
+	 */
+	public void setParameterizedQueries(boolean val) {
+		this.parameterizedQueries = val;
+	}
+
+	public int getBatchSize() {
+		return batchSizer.getSize();
+	}
+
+	/**
+	 * Set the number of triples sent to the server in one batch by add,
+	 * delete and the bulk loaders. In adaptive mode this is the starting
+	 * size.
+	 */
+	public void setBatchSize(int sz) {
+		batchSizer.setSize(sz);
+	}
+
+	public boolean getAdaptiveBatchSize() {
+		return batchSizer.isAdaptive();
+	}
+
+	/**
+	 * When set, the batch size follows the observed executeBatch latency,
+	 * see VirtBatchSizer.
+	 */
+	public void setAdaptiveBatchSize(boolean val) {
+		batchSizer.setAdaptive(val);
+	}
+
+	public long getMaxBatchBytes() {
+		return batchSizer.getMaxBytes();
+	}
+
+	/**
+	 * Set the estimated size in bytes after which a batch is sent even if
+	 * it has fewer triples than the batch size. 0 for no bound.
+	 */
+	public void setMaxBatchBytes(long val) {
+		batchSizer.setMaxBytes(val);
+	}
+
+	public VirtBatchSizer getBatchSizer() {
+		return batchSizer;
+	}
+
+	public int getStatementCacheSize() {
+		return this.statementCacheSize;
+	}
+
+	/**
+	 * Set the maximum number of prepared statements kept open per connection.
+	 * 0 disables statement caching.
+	 */
+	public void setStatementCacheSize(int sz) {
+		this.statementCacheSize = sz;
+		if (stmtCache != null)
+			stmtCache.setMaxSize(sz);
+		if (pool() != null)
+			for (VirtStatementCache c : pool().getStatementCaches())
+				c.setMaxSize(sz);
+	}
+
+	public long getStatementCacheHits() {
+		if (parent != null)
+			return parent.getStatementCacheHits();
+		long ret = (stmtCache != null ? stmtCache.getHits() : 0);
+		if (pool() != null)
+			for (VirtStatementCache c : pool().getStatementCaches())
+				ret += c.getHits();
+		return ret;
+	}
+
+	public long getStatementCacheMisses() {
+		if (parent != null)
+			return parent.getStatementCacheMisses();
+		long ret = (stmtCache != null ? stmtCache.getMisses() : 0);
+		if (pool() != null)
+			for (VirtStatementCache c : pool().getStatementCaches())
+				ret += c.getMisses();
+		return ret;
 	}
 
 	public int getCount() {
 		return size();
 	}
 
+	public SizeMode getSizeMode() {
+		return sizeMode;
+	}
+
+	/**
+	 * Set how size() and sizeLong() are computed, see SizeMode.
+	 */
+	public void setSizeMode(SizeMode mode) {
+		sizeMode = mode;
+		cachedSize.set(-1);
+	}
+
+	/**
+	 * The number of triples in the graph, computed as set by setSizeMode().
+	 */
+	public long sizeLong() {
+		return size(sizeMode);
+	}
+
+	public long size(SizeMode mode) {
+		checkOpen();
+		switch (mode) {
+		case ESTIMATE:
+			long n = estimatedSize();
+			return n >= 0 ? n : exactSize();
+		case CACHED:
+			n = cachedSize.get();
+			if (n < 0) {
+				n = exactSize();
+				cachedSize.compareAndSet(-1, n);
+			}
+			return Math.max(n, 0);
+		default:
+			return exactSize();
+		}
+	}
+
+	// follow a change of delta triples in the cached size
+	void sizeChanged(long delta) {
+		long n;
+		do {
+			n = cachedSize.get();
+		} while (n >= 0 && !cachedSize.compareAndSet(n, n + delta));
+		graphChanged(graphName);
+	}
+
+	// forget the cached size after a change of unknown extent
+	void sizeUnknown() {
+		cachedSize.set(-1);
+		graphChanged(graphName);
+	}
+
+	// the graph named name was written through this graph; a view passes
+	// this on so that its dataset drops what it knows about the graph
+	void graphChanged(String name) {
+		if (parent != null)
+			parent.graphChanged(name);
+	}
+
 	public void remove(List triples) {
 		delete(triples.iterator(), null);
 	}
@@ -290,7 +656,7 @@ public class VirtGraph extends GraphBase {
 		}
 	}
 
-	private static String escapeString(String s) {
+	static String escapeString(String s) {
 		StringBuffer buf = new StringBuffer(s.length());
 		int i = 0;
 		char ch;
@@ -304,22 +670,90 @@ public class VirtGraph extends GraphBase {
 	}
 
 	protected java.sql.Statement createStatement() throws java.sql.SQLException {
+		return createStatement(getConnection());
+	}
+
+	protected java.sql.Statement createStatement(Connection c)
+			throws java.sql.SQLException {
 		checkOpen();
-		java.sql.Statement st = connection.createStatement();
-		if (queryTimeout > 0)
-			st.setQueryTimeout(queryTimeout);
-		st.setFetchSize(prefetchSize);
+		java.sql.Statement st = c.createStatement();
+		configureStatement(st);
 		return st;
 	}
 
 	protected java.sql.PreparedStatement prepareStatement(String sql)
 			throws java.sql.SQLException {
+		return prepareStatement(getConnection(), sql);
+	}
+
+	protected java.sql.PreparedStatement prepareStatement(Connection c,
+			String sql) throws java.sql.SQLException {
 		checkOpen();
-		java.sql.PreparedStatement st = connection.prepareStatement(sql);
+		java.sql.PreparedStatement st = c.prepareStatement(sql);
+		configureStatement(st);
+		return st;
+	}
+
+	void configureStatement(java.sql.Statement st)
+			throws java.sql.SQLException {
 		if (queryTimeout > 0)
 			st.setQueryTimeout(queryTimeout);
 		st.setFetchSize(prefetchSize);
-		return st;
+	}
+
+	/**
+	 * Take a prepared statement for sql out of the per-connection statement
+	 * cache. It must be handed back with releaseCachedStatement() and must
+	 * not be closed by the caller.
+	 */
+	protected java.sql.PreparedStatement prepareCachedStatement(String sql)
+			throws java.sql.SQLException {
+		return prepareCachedStatement(getConnection(), sql);
+	}
+
+	protected java.sql.PreparedStatement prepareCachedStatement(Connection c,
+			String sql) throws java.sql.SQLException {
+		checkOpen();
+		return getStatementCache(c).acquire(sql);
+	}
+
+	protected void releaseCachedStatement(String sql,
+			java.sql.PreparedStatement ps) {
+		releaseCachedStatement(getConnection(), sql, ps);
+	}
+
+	protected void releaseCachedStatement(Connection c, String sql,
+			java.sql.PreparedStatement ps) {
+		if (ps != null)
+			getStatementCache(c).release(sql, ps);
+	}
+
+	// a view prepares its statements in the cache of its parent, which owns
+	// the connection
+	synchronized VirtStatementCache getStatementCache(Connection c) {
+		if (parent != null)
+			return parent.getStatementCache(c);
+		if (c != connection && pool() != null) {
+			VirtStatementCache cache = pool().getStatementCache(c);
+			if (cache != null)
+				return cache;
+		}
+		if (stmtCache == null)
+			stmtCache = new VirtStatementCache(this, connection,
+					statementCacheSize);
+		return stmtCache;
+	}
+
+	protected void invalidateStatementCache() {
+		if (parent != null) {
+			parent.invalidateStatementCache();
+			return;
+		}
+		if (stmtCache != null)
+			stmtCache.clear();
+		if (pool() != null)
+			for (VirtStatementCache c : pool().getStatementCaches())
+				c.clear();
 	}
 
 	// GraphBase overrides
@@ -410,76 +844,136 @@ public class VirtGraph extends GraphBase {
 
 	// --java5 or newer @Override
 	public void performAdd(Triple t) {
-		java.sql.PreparedStatement ps;
+		Connection c = null;
+		java.sql.PreparedStatement ps = null;
 
 		try {
-			ps = prepareStatement(sinsert);
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, sinsert);
 			ps.setString(1, this.graphName);
 			bindSubject(ps, 2, t.getSubject());
 			bindPredicate(ps, 3, t.getPredicate());
 			bindObject(ps, 4, t.getObject());
 
 			ps.execute();
-			ps.close();
+			sizeChanged(1);
 		} catch (Exception e) {
 			throw new AddDeniedException(e.toString());
+		} finally {
+			releaseCachedStatement(c, sinsert, ps);
+			releaseConnection(c);
 		}
 	}
 
 	public void performDelete(Triple t) {
-		java.sql.PreparedStatement ps;
+		Connection c = null;
+		java.sql.PreparedStatement ps = null;
 
 		try {
-			ps = prepareStatement(sdelete);
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, sdelete);
 			ps.setString(1, this.graphName);
 			bindSubject(ps, 2, t.getSubject());
 			bindPredicate(ps, 3, t.getPredicate());
 			bindObject(ps, 4, t.getObject());
 
 			ps.execute();
-			ps.close();
+			sizeChanged(-1);
 		} catch (Exception e) {
 			throw new DeleteDeniedException(e.toString());
+		} finally {
+			releaseCachedStatement(c, sdelete, ps);
+			releaseConnection(c);
 		}
 	}
 
-	/**
-	 * more efficient
-	 */
 	// --java5 or newer @Override
 	protected int graphBaseSize() {
-		StringBuffer sb = new StringBuffer(
-				"select count(*) from (sparql define input:storage \"\" ");
+		long n = sizeLong();
+		return n > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) n;
+	}
 
+	private String sizePrologue(String sb) {
 		if (ruleSet != null)
-			sb.append(" define input:inference '" + ruleSet + "'\n ");
-
+			sb += " define input:inference '" + ruleSet + "'\n ";
 		if (useSameAs)
-			sb.append(" define input:same-as \"yes\"\n ");
+			sb += " define input:same-as \"yes\"\n ";
+		return sb;
+	}
 
+	private long exactSize() {
+		String query = sizePrologue("sparql define input:storage \"\" ");
 		if (readFromAllGraphs)
-			sb.append(" select * where {?s ?p ?o })f");
+			query += " select count(*) where { ?s ?p ?o }";
 		else
-			sb.append(" select * where { graph `iri(??)` { ?s ?p ?o }})f");
+			query += " select count(*) where { graph `iri(??)` { ?s ?p ?o }}";
+		return queryLong(query, !readFromAllGraphs, 0);
+	}
 
+	// -1 when there is no usable estimate
+	private long estimatedSize() {
+		if (!readFromAllGraphs || ruleSet != null || useSameAs)
+			return -1;
+		long n = queryLong("select CS_N_ROWS from DB.DBA.SYS_COL_STAT"
+				+ " where CS_TABLE = 'DB.DBA.RDF_QUAD' and CS_COL = 'G'",
+				false, -1);
+		return n > 0 ? n : -1;
+	}
+
+	private long queryLong(String query, boolean bindGraph, long dflt) {
+		Connection c = null;
+		java.sql.PreparedStatement ps = null;
 		ResultSet rs = null;
-		int ret = 0;
+		long ret = dflt;
+
+		try {
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, query);
+			if (bindGraph)
+				ps.setString(1, graphName);
+			rs = ps.executeQuery();
+			if (rs.next())
+				ret = rs.getLong(1);
+			rs.close();
+		} catch (Exception e) {
+			throw new JenaException(e);
+		} finally {
+			releaseCachedStatement(c, query, ps);
+			releaseConnection(c);
+		}
+		return ret;
+	}
+
+	/**
+	 * Probes for a single triple instead of counting them.
+	 */
+	// --java5 or newer @Override
+	public boolean isEmpty() {
+		String query = sizePrologue("sparql define input:storage \"\" ");
+		if (readFromAllGraphs)
+			query += " select 1 where { ?s ?p ?o } limit 1";
+		else
+			query += " select 1 where { graph `iri(??)` { ?s ?p ?o }} limit 1";
+
+		Connection c = null;
+		java.sql.PreparedStatement ps = null;
+		boolean ret;
 
 		checkOpen();
 
 		try {
-			java.sql.PreparedStatement ps = prepareStatement(sb.toString());
-
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, query);
 			if (!readFromAllGraphs)
 				ps.setString(1, graphName);
-
-			rs = ps.executeQuery();
-			if (rs.next())
-				ret = rs.getInt(1);
+			ResultSet rs = ps.executeQuery();
+			ret = !rs.next();
 			rs.close();
-			ps.close();
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			releaseCachedStatement(c, query, ps);
+			releaseConnection(c);
 		}
 		return ret;
 	}
@@ -523,8 +1017,10 @@ public class VirtGraph extends GraphBase {
 			sb.append(" select * where { graph <" + graphName + "> { " + S
 					+ " " + P + " " + O + " }} limit 1");
 
+		Connection c = null;
 		try {
-			java.sql.Statement stmt = createStatement();
+			c = acquireConnection();
+			java.sql.Statement stmt = createStatement(c);
 			rs = stmt.executeQuery(sb.toString());
 			boolean ret = rs.next();
 			rs.close();
@@ -532,6 +1028,8 @@ public class VirtGraph extends GraphBase {
 			return ret;
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			releaseConnection(c);
 		}
 	}
 
@@ -567,19 +1065,38 @@ public class VirtGraph extends GraphBase {
 			sb.append(" select * from <" + graphName + "> where { " + S + " "
 					+ P + " " + O + " }");
 
+		Connection c = null;
 		try {
+			c = acquireConnection();
 			java.sql.PreparedStatement stmt;
-			stmt = prepareStatement(sb.toString());
-			return new VirtResSetIter(this, stmt.executeQuery(), tm, stmt);
+			stmt = prepareStatement(c, sb.toString());
+			return new VirtResSetIter(this, stmt.executeQuery(), tm, stmt, c);
 		} catch (Exception e) {
+			releaseConnection(c);
 			throw new JenaException(e);
 		}
 	}
 
+	// a view is closed with its parent
+	protected void checkOpen() {
+		if (parent != null)
+			parent.checkOpen();
+		super.checkOpen();
+	}
+
+	public boolean isClosed() {
+		return super.isClosed() || (parent != null && parent.isClosed());
+	}
+
 	// --java5 or newer @Override
 	public void close() {
 		try {
 			super.close(); // will set closed = true
+			if (parent != null) // the connection belongs to the parent
+				return;
+			if (pool != null)
+				pool.close();
+			invalidateStatementCache();
 			connection.close();
 		} catch (Exception e) {
 			throw new JenaException(e);
@@ -593,9 +1110,26 @@ public class VirtGraph extends GraphBase {
 		getEventManager().notifyEvent(this, GraphEvents.removeAll);
 	}
 
+	/**
+	 * Load the document at url into the graph. A local file in a format
+	 * Virtuoso parses natively (type, or guessed from the extension when
+	 * type is null) is streamed through VirtBulkLoader, which throws if it
+	 * does not fit, see VirtBulkLoader.fits(); anything else is fetched by
+	 * the server with sparql load.
+	 */
 	public void read(String url, String type) {
 		String exec_text;
 
+		if (FileUtils.isFile(url)) {
+			String lang = type != null ? type : FileUtils.guessLang(url,
+					null);
+			if (VirtBulkLoader.Format.forLang(lang) != null) {
+				new VirtBulkLoader(this).load(
+						new File(FileUtils.toFilename(url)), lang);
+				return;
+			}
+		}
+
 		exec_text = "sparql load \"" + url + "\" into graph <" + graphName
 				+ ">";
 
@@ -606,14 +1140,21 @@ public class VirtGraph extends GraphBase {
 			stmt.close();
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			sizeUnknown();
 		}
 	}
 
 	// --java5 or newer @SuppressWarnings("unchecked")
 	void add(Iterator<Triple> it, List<Triple> list) {
+		Connection c = null;
+		PreparedStatement ps = null;
+
 		try {
-			PreparedStatement ps = prepareStatement(sinsert);
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, sinsert);
 			int count = 0;
+			long bytes = 0;
 
 			while (it.hasNext()) {
 				Triple t = (Triple) it.next();
@@ -627,36 +1168,69 @@ public class VirtGraph extends GraphBase {
 				bindObject(ps, 4, t.getObject());
 				ps.addBatch();
 				count++;
+				bytes += VirtBatchSizer.estimate(t);
 
-				if (count > BATCH_SIZE) {
-					ps.executeBatch();
-					ps.clearBatch();
+				if (batchSizer.isFull(count, bytes)) {
+					batchSizer.execute(ps, count);
+					sizeChanged(count);
 					count = 0;
+					bytes = 0;
 				}
 			}
 
 			if (count > 0) {
-				ps.executeBatch();
-				ps.clearBatch();
+				batchSizer.execute(ps, count);
+				sizeChanged(count);
 			}
-			ps.close();
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			releaseCachedStatement(c, sinsert, ps);
+			releaseConnection(c);
 		}
 	}
 
 	void delete(Iterator<Triple> it, List<Triple> list) {
+		Connection c = null;
+		PreparedStatement ps = null;
+
 		try {
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, sdelete);
+			int count = 0;
+			long bytes = 0;
+
 			while (it.hasNext()) {
-				Triple triple = (Triple) it.next();
+				Triple t = (Triple) it.next();
 
 				if (list != null)
-					list.add(triple);
+					list.add(t);
+
+				ps.setString(1, this.graphName);
+				bindSubject(ps, 2, t.getSubject());
+				bindPredicate(ps, 3, t.getPredicate());
+				bindObject(ps, 4, t.getObject());
+				ps.addBatch();
+				count++;
+				bytes += VirtBatchSizer.estimate(t);
 
-				performDelete(triple);
+				if (batchSizer.isFull(count, bytes)) {
+					batchSizer.execute(ps, count);
+					sizeChanged(-count);
+					count = 0;
+					bytes = 0;
+				}
+			}
+
+			if (count > 0) {
+				batchSizer.execute(ps, count);
+				sizeChanged(-count);
 			}
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			releaseCachedStatement(c, sdelete, ps);
+			releaseConnection(c);
 		}
 	}
 
@@ -673,23 +1247,34 @@ public class VirtGraph extends GraphBase {
 		nS = tm.getMatchSubject();
 		nP = tm.getMatchPredicate();
 		nO = tm.getMatchObject();
+		sizeUnknown();
 
-		try {
-			if (nS == null && nP == null && nO == null) {
-
+		if (nS == null && nP == null && nO == null) {
+			try {
 				clearGraph(this.graphName);
+			} catch (Exception e) {
+				throw new DeleteDeniedException(e.toString());
+			}
+			return;
+		}
 
-			} else if (nS != null && nP != null && nO != null) {
-				java.sql.PreparedStatement ps;
-
-				ps = prepareStatement(sdelete);
-				ps.setString(1, this.graphName);
-				bindSubject(ps, 2, nS);
-				bindPredicate(ps, 3, nP);
-				bindObject(ps, 4, nO);
-
-				ps.execute();
-				ps.close();
+		Connection c = null;
+		try {
+			c = acquireConnection();
+			if (nS != null && nP != null && nO != null) {
+				java.sql.PreparedStatement ps = prepareCachedStatement(c,
+						sdelete);
+
+				try {
+					ps.setString(1, this.graphName);
+					bindSubject(ps, 2, nS);
+					bindPredicate(ps, 3, nP);
+					bindObject(ps, 4, nO);
+
+					ps.execute();
+				} finally {
+					releaseCachedStatement(c, sdelete, ps);
+				}
 
 			} else {
 
@@ -707,27 +1292,35 @@ public class VirtGraph extends GraphBase {
 						+ this.graphName + "> where { " + S + " " + P + " " + O
 						+ " }";
 
-				java.sql.Statement stmt = createStatement();
+				java.sql.Statement stmt = createStatement(c);
 				stmt.execute(query);
 				stmt.close();
 			}
 		} catch (Exception e) {
 			throw new DeleteDeniedException(e.toString());
+		} finally {
+			releaseConnection(c);
 		}
 	}
 
 	void clearGraph(String name) {
 		String query = "sparql clear graph iri(??)";
+		Connection c = null;
+		java.sql.PreparedStatement ps = null;
 
 		checkOpen();
 
 		try {
-			java.sql.PreparedStatement ps = prepareStatement(query);
+			c = acquireConnection();
+			ps = prepareCachedStatement(c, query);
 			ps.setString(1, name);
 			ps.execute();
-			ps.close();
+			sizeUnknown();
 		} catch (Exception e) {
 			throw new JenaException(e);
+		} finally {
+			releaseCachedStatement(c, query, ps);
+			releaseConnection(c);
 		}
 	}
 
@@ -759,6 +1352,16 @@ public class VirtGraph extends GraphBase {
 		return m_prefixMapping;
 	}
 
+	// datatypes of the JDBC values converted by Object2Node
+	static final RDFDatatype XSD_INTEGER = XSDDatatype.XSDinteger;
+	static final RDFDatatype XSD_FLOAT = XSDDatatype.XSDfloat;
+	static final RDFDatatype XSD_DOUBLE = XSDDatatype.XSDdouble;
+	static final RDFDatatype XSD_DECIMAL = XSDDatatype.XSDdecimal;
+	static final RDFDatatype XSD_HEXBINARY = XSDDatatype.XSDhexBinary;
+	static final RDFDatatype XSD_DATE = XSDDatatype.XSDdate;
+	static final RDFDatatype XSD_DATETIME = XSDDatatype.XSDdateTime;
+	static final RDFDatatype XSD_TIME = XSDDatatype.XSDtime;
+
 	public static Node Object2Node(Object o) {
 		if (o == null)
 			return null;
@@ -768,11 +1371,11 @@ public class VirtGraph extends GraphBase {
 
 			if (vs.getIriType() == ExtendedString.IRI
 					&& (vs.getStrType() & 0x01) == 0x01) {
-				if (vs.toString().indexOf("_:") == 0)
-					return Node.createAnon(AnonId.create(vs.toString()
-							.substring(2))); // _:
+				String s = vs.toString();
+				if (s.startsWith("_:"))
+					return Node.createAnon(AnonId.create(s.substring(2))); // _:
 				else
-					return Node.createURI(vs.toString());
+					return VirtNodeCache.createURI(s);
 
 			} else if (vs.getIriType() == ExtendedString.BNODE) {
 				return Node.createAnon(AnonId
@@ -789,74 +1392,46 @@ public class VirtGraph extends GraphBase {
 			RDFDatatype dt = null;
 
 			if (rb_type != null)
-				dt = TypeMapper.getInstance().getSafeTypeByName(rb_type);
+				dt = VirtNodeCache.getDatatype(rb_type);
 			return Node.createLiteral(rb.toString(), rb.getLang(), dt);
 
 		} else if (o instanceof java.lang.Integer) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#integer");
-			return Node.createLiteral(o.toString(), null, dt);
+			return Node.createLiteral(o.toString(), null, XSD_INTEGER);
 
 		} else if (o instanceof java.lang.Short) {
 
-			RDFDatatype dt = null;
-			// dt =
-			// TypeMapper.getInstance().getSafeTypeByName("http://www.w3.org/2001/XMLSchema#short");
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#integer");
-			return Node.createLiteral(o.toString(), null, dt);
+			// xsd:short is reported as xsd:integer
+			return Node.createLiteral(o.toString(), null, XSD_INTEGER);
 
 		} else if (o instanceof java.lang.Float) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#float");
-			return Node.createLiteral(o.toString(), null, dt);
+			return Node.createLiteral(o.toString(), null, XSD_FLOAT);
 
 		} else if (o instanceof java.lang.Double) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#double");
-			return Node.createLiteral(o.toString(), null, dt);
+			return Node.createLiteral(o.toString(), null, XSD_DOUBLE);
 
 		} else if (o instanceof java.math.BigDecimal) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#decimal");
-			return Node.createLiteral(o.toString(), null, dt);
+			return Node.createLiteral(o.toString(), null, XSD_DECIMAL);
 
 		} else if (o instanceof java.sql.Blob) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#hexBinary");
-			return Node.createLiteral(o.toString(), null, dt);
+			return Node.createLiteral(o.toString(), null, XSD_HEXBINARY);
 
 		} else if (o instanceof java.sql.Date) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#date");
-			return Node.createLiteral(o.toString(), null, dt);
+			return Node.createLiteral(o.toString(), null, XSD_DATE);
 
 		} else if (o instanceof java.sql.Timestamp) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#dateTime");
 			return Node.createLiteral(Timestamp2String((java.sql.Timestamp) o),
-					null, dt);
+					null, XSD_DATETIME);
 
 		} else if (o instanceof java.sql.Time) {
 
-			RDFDatatype dt = null;
-			dt = TypeMapper.getInstance().getSafeTypeByName(
-					"http://www.w3.org/2001/XMLSchema#time");
-			return Node.createLiteral(o.toString(), null, dt);
+			return Node.createLiteral(o.toString(), null, XSD_TIME);
 
 		} else {
 
@@ -864,7 +1439,7 @@ public class VirtGraph extends GraphBase {
 		}
 	}
 
-	private static String Timestamp2String(java.sql.Timestamp v) {
+	static String Timestamp2String(java.sql.Timestamp v) {
 		GregorianCalendar cal = new GregorianCalendar();
 		cal.setTime(v);
 
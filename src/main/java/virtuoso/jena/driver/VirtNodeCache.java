@@ -0,0 +1,133 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Bounded intern cache of IRI nodes and datatypes used when converting JDBC
+ * values to nodes. Results are usually dominated by a few hundred
+ * predicates and classes, which are then converted to the same Node
+ * instances.
+ *
+ * The IRI cache is split into stripes, each an LRU map with its own lock,
+ * so concurrent result sets rarely contend.
+ */
+public class VirtNodeCache {
+
+	static final int DEFAULT_SIZE = 16384;
+	private static final int STRIPES = 16;
+
+	private static final Stripe[] iris = new Stripe[STRIPES];
+	private static volatile int stripeSize = DEFAULT_SIZE / STRIPES;
+
+	// datatypes are few, but a store with generated datatype IRIs must not
+	// grow the map without bound; it is emptied when full
+	private static final int DATATYPE_CACHE_SIZE = 1024;
+	private static final Map<String, RDFDatatype> datatypes = new ConcurrentHashMap<String, RDFDatatype>();
+
+	static {
+		for (int i = 0; i < STRIPES; i++)
+			iris[i] = new Stripe();
+	}
+
+	private VirtNodeCache() {
+	}
+
+	/**
+	 * Get the URI node for iri.
+	 */
+	public static Node createURI(String iri) {
+		Stripe s = iris[(iri.hashCode() & 0x7fffffff) % STRIPES];
+		synchronized (s) {
+			Node n = s.get(iri);
+			if (n == null) {
+				n = Node.createURI(iri);
+				s.put(iri, n);
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Get the datatype named uri, see TypeMapper.getSafeTypeByName.
+	 */
+	public static RDFDatatype getDatatype(String uri) {
+		RDFDatatype dt = datatypes.get(uri);
+		if (dt == null) {
+			dt = TypeMapper.getInstance().getSafeTypeByName(uri);
+			if (datatypes.size() >= DATATYPE_CACHE_SIZE)
+				datatypes.clear();
+			datatypes.put(uri, dt);
+		}
+		return dt;
+	}
+
+	/**
+	 * Set the number of IRI nodes kept, 0 disables the cache.
+	 */
+	public static void setMaxSize(int size) {
+		stripeSize = (size + STRIPES - 1) / STRIPES;
+		clear();
+	}
+
+	public static int getMaxSize() {
+		return stripeSize * STRIPES;
+	}
+
+	public static int size() {
+		int n = 0;
+		for (int i = 0; i < STRIPES; i++)
+			synchronized (iris[i]) {
+				n += iris[i].size();
+			}
+		return n;
+	}
+
+	public static void clear() {
+		for (int i = 0; i < STRIPES; i++)
+			synchronized (iris[i]) {
+				iris[i].clear();
+			}
+		datatypes.clear();
+	}
+
+	@SuppressWarnings("serial")
+	private static class Stripe extends LinkedHashMap<String, Node> {
+		Stripe() {
+			super(64, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+			return size() > stripeSize;
+		}
+	}
+
+}
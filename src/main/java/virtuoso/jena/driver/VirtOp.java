@@ -0,0 +1,187 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.util.Iterator;
+
+import org.apache.jena.atlas.io.IndentedWriter;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpAsQuery;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpDistinct;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.algebra.op.OpSequence;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.core.Substitute;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterRepeatApply;
+import com.hp.hpl.jena.sparql.serializer.SerializationContext;
+import com.hp.hpl.jena.sparql.util.NodeIsomorphismMap;
+
+/**
+ * Algebra sub-tree over a VirtGraph that is compiled back to SPARQL and
+ * evaluated by Virtuoso. VirtuosoQueryEngine replaces the maximal such
+ * sub-trees of a query with VirtOp and leaves the rest to ARQ.
+ */
+public class VirtOp extends OpExt {
+
+	private Op subOp;
+	private VirtGraph graph;
+
+	public VirtOp(Op _subOp, VirtGraph _graph) {
+		super("virtuoso");
+		subOp = _subOp;
+		graph = _graph;
+	}
+
+	/**
+	 * Can op be evaluated by Virtuoso as a whole? OpAsQuery only keeps
+	 * solution modifiers at the top of the tree, in the order slice,
+	 * distinct, project, order; below them a pattern of BGPs, filters and
+	 * joins is accepted.
+	 */
+	public static boolean isPushable(Op op) {
+		if (op instanceof OpSlice)
+			op = ((OpSlice) op).getSubOp();
+		if (op instanceof OpDistinct)
+			op = ((OpDistinct) op).getSubOp();
+		if (op instanceof OpProject)
+			op = ((OpProject) op).getSubOp();
+		if (op instanceof OpOrder)
+			op = ((OpOrder) op).getSubOp();
+		return isPushablePattern(op);
+	}
+
+	private static boolean isPushablePattern(Op op) {
+		if (op instanceof OpBGP)
+			return true;
+		if (op instanceof OpFilter)
+			return isPushablePattern(((OpFilter) op).getSubOp());
+		if (op instanceof OpJoin)
+			return isPushablePattern(((OpJoin) op).getLeft())
+					&& isPushablePattern(((OpJoin) op).getRight());
+		if (op instanceof OpSequence) {
+			for (Op sub : ((OpSequence) op).getElements())
+				if (!isPushablePattern(sub))
+					return false;
+			return true;
+		}
+		return false;
+	}
+
+	public Op getSubOp() {
+		return subOp;
+	}
+
+	public VirtGraph getGraph() {
+		return graph;
+	}
+
+	public Op effectiveOp() {
+		return subOp;
+	}
+
+	public QueryIterator eval(QueryIterator input, ExecutionContext execCxt) {
+		int batchSize = VirtuosoQueryEngine.getBoundJoinBatchSize(execCxt
+				.getContext());
+		if (batchSize > 1 && VirtBoundJoin.isBatchable(subOp))
+			return new VirtBoundJoin(input, this, batchSize, execCxt);
+
+		return new QueryIterRepeatApply(input, execCxt) {
+			protected QueryIterator nextStage(Binding binding) {
+				return exec(binding);
+			}
+		};
+	}
+
+	/**
+	 * Run the sub-tree with the values of parent substituted in and return
+	 * its solutions extended by parent.
+	 */
+	protected QueryIterator exec(Binding parent) {
+		Op op = subOp;
+		if (parent != null && !parent.isEmpty())
+			op = Substitute.substitute(op, encodeBlanks(parent));
+		return VirtuosoQueryEngine.execQuery(graph, toSPARQL(op), parent);
+	}
+
+	// A blank node written as _:label would be a fresh variable in the query,
+	// so blank nodes are passed the way VirtGraph.Node2Str writes them, as
+	// <_:label>. The solutions are merged with the original parent.
+	private static Binding encodeBlanks(Binding b) {
+		BindingMap res = null;
+		for (Iterator<Var> i = b.vars(); i.hasNext();) {
+			if (b.get(i.next()).isBlank()) {
+				res = BindingFactory.create();
+				break;
+			}
+		}
+		if (res == null)
+			return b;
+		for (Iterator<Var> i = b.vars(); i.hasNext();) {
+			Var v = i.next();
+			Node n = b.get(v);
+			res.add(v, n.isBlank() ? Node.createURI("_:" + n) : n);
+		}
+		return res;
+	}
+
+	protected static Query toQuery(Op op) {
+		return OpAsQuery.asQuery(op);
+	}
+
+	protected static String toSPARQL(Op op) {
+		return toQuery(op).toString();
+	}
+
+	public void outputArgs(IndentedWriter out, SerializationContext sCxt) {
+		out.print(graph.getGraphName());
+		out.println();
+		subOp.output(out, sCxt);
+	}
+
+	public int hashCode() {
+		return subOp.hashCode() ^ graph.hashCode();
+	}
+
+	public boolean equalTo(Op other, NodeIsomorphismMap labelMap) {
+		if (!(other instanceof VirtOp))
+			return false;
+		VirtOp op = (VirtOp) other;
+		return graph == op.graph && subOp.equalTo(op.subOp, labelMap);
+	}
+
+}
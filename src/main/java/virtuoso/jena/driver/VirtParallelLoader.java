@@ -0,0 +1,379 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.JenaException;
+
+/**
+ * Loads a stream of triples into a graph over several connections in
+ * parallel. The calling thread cuts the stream into chunks and puts them on
+ * a bounded queue, which blocks it while the workers are behind. Each worker
+ * has its own connection opened through VirtGraph.openConnection(), inserts
+ * every chunk with one batched sinsert and commits every commitInterval
+ * triples.
+ *
+ * The load is not atomic: work committed by a worker stays in the graph
+ * when another worker fails. On a failure the failing worker rolls back
+ * its uncommitted triples, then
+ * <ul>
+ * <li>ABORT (the default) stops the load, the other workers roll back
+ * their uncommitted triples and load() throws a JenaException;</li>
+ * <li>CONTINUE counts the rolled back triples as failed in the report and
+ * goes on with the next chunk.</li>
+ * </ul>
+ *
+ * Graph listeners are not notified of the loaded triples.
+ */
+public class VirtParallelLoader {
+
+	public enum FailurePolicy {
+		ABORT, CONTINUE
+	}
+
+	/**
+	 * Outcome of a load.
+	 */
+	public static class Report {
+		private final long triples;
+		private final long failed;
+		private final long millis;
+		private final List<Throwable> errors;
+
+		Report(long _triples, long _failed, long _millis,
+				List<Throwable> _errors) {
+			triples = _triples;
+			failed = _failed;
+			millis = _millis;
+			errors = _errors;
+		}
+
+		/** Number of triples committed. */
+		public long getTriples() {
+			return triples;
+		}
+
+		/** Number of triples rolled back after a failure. */
+		public long getFailedTriples() {
+			return failed;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public double getTriplesPerSecond() {
+			return millis > 0 ? triples * 1000.0 / millis : triples;
+		}
+
+		public List<Throwable> getErrors() {
+			return errors;
+		}
+
+		public String toString() {
+			return triples + " triples in " + millis + " ms ("
+					+ Math.round(getTriplesPerSecond()) + " triples/s), "
+					+ failed + " failed";
+		}
+	}
+
+	private static final List<Triple> END = Collections.emptyList();
+
+	private VirtGraph graph;
+	private int workers = 4;
+	private int queueCapacity = 0;
+	private int chunkSize;
+	private int commitInterval;
+	private FailurePolicy failurePolicy = FailurePolicy.ABORT;
+
+	public VirtParallelLoader(VirtGraph _graph) {
+		graph = _graph;
+		chunkSize = graph.getBatchSize();
+		commitInterval = 10 * chunkSize;
+	}
+
+	public VirtParallelLoader(VirtGraph _graph, int _workers) {
+		this(_graph);
+		setWorkers(_workers);
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Set the number of worker threads and connections.
+	 */
+	public void setWorkers(int _workers) {
+		if (_workers < 1)
+			throw new IllegalArgumentException("workers < 1");
+		workers = _workers;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity > 0 ? queueCapacity : 2 * workers;
+	}
+
+	/**
+	 * Set the number of chunks that may wait for a worker. Defaults to twice
+	 * the number of workers.
+	 */
+	public void setQueueCapacity(int _queueCapacity) {
+		queueCapacity = _queueCapacity;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Set the number of triples sent to the server in one batch.
+	 */
+	public void setChunkSize(int _chunkSize) {
+		if (_chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize < 1");
+		chunkSize = _chunkSize;
+	}
+
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+	/**
+	 * Set the number of triples after which a worker commits. The commit
+	 * happens at the end of the chunk that reaches it.
+	 */
+	public void setCommitInterval(int _commitInterval) {
+		commitInterval = _commitInterval;
+	}
+
+	public FailurePolicy getFailurePolicy() {
+		return failurePolicy;
+	}
+
+	public void setFailurePolicy(FailurePolicy _failurePolicy) {
+		failurePolicy = _failurePolicy;
+	}
+
+	/**
+	 * Load it into the graph.
+	 */
+	public Report load(Iterator<Triple> it) {
+		return load(graph.getGraphName(), it);
+	}
+
+	/**
+	 * Load it into the graph named graphName, on connections opened like
+	 * those of the graph.
+	 */
+	public Report load(String graphName, Iterator<Triple> it) {
+		Load load = new Load(graphName);
+		return load.run(it);
+	}
+
+	private class Load {
+		final String graphName;
+		final BlockingQueue<List<Triple>> queue;
+		final AtomicLong loaded = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		volatile boolean aborted = false;
+
+		Load(String _graphName) {
+			graphName = _graphName;
+			queue = new ArrayBlockingQueue<List<Triple>>(getQueueCapacity());
+		}
+
+		Report run(Iterator<Triple> it) {
+			long start = System.currentTimeMillis();
+			List<Thread> threads = new ArrayList<Thread>(workers);
+
+			for (int i = 0; i < workers; i++) {
+				Thread t = new Thread(new Worker(), "VirtParallelLoader-" + i);
+				t.setDaemon(true);
+				threads.add(t);
+				t.start();
+			}
+
+			try {
+				List<Triple> chunk = new ArrayList<Triple>(chunkSize);
+				while (it.hasNext() && !aborted) {
+					chunk.add(it.next());
+					if (chunk.size() >= chunkSize) {
+						put(chunk);
+						chunk = new ArrayList<Triple>(chunkSize);
+					}
+				}
+				if (!chunk.isEmpty())
+					put(chunk);
+			} catch (RuntimeException e) {
+				abort(e);
+			} finally {
+				for (int i = 0; i < workers; i++)
+					put(END);
+				for (Iterator<Thread> i = threads.iterator(); i.hasNext();) {
+					try {
+						i.next().join();
+					} catch (InterruptedException e) {
+						abort(e);
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+
+			graph.sizeUnknown();
+			Report report = new Report(loaded.get(), failed.get(),
+					System.currentTimeMillis() - start,
+					new ArrayList<Throwable>(errors));
+			if (aborted)
+				throw new JenaException("Parallel load failed: " + report,
+						errors.isEmpty() ? null : errors.get(0));
+			return report;
+		}
+
+		// put c on the queue, unless the load was aborted meanwhile
+		void put(List<Triple> c) {
+			try {
+				while (!queue.offer(c, 100, TimeUnit.MILLISECONDS))
+					if (aborted && c != END)
+						return;
+					else if (aborted)
+						queue.clear();
+			} catch (InterruptedException e) {
+				abort(e);
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void abort(Throwable e) {
+			errors.add(e);
+			aborted = true;
+		}
+
+		private class Worker implements Runnable {
+			Connection c = null;
+			PreparedStatement ps = null;
+			long uncommitted = 0;
+
+			public void run() {
+				try {
+					c = graph.openConnection();
+					c.setAutoCommit(false);
+					ps = c.prepareStatement(VirtGraph.sinsert);
+
+					while (true) {
+						List<Triple> chunk = queue.take();
+						if (chunk == END || (aborted
+								&& failurePolicy == FailurePolicy.ABORT))
+							break;
+						try {
+							insert(chunk);
+						} catch (SQLException e) {
+							rollback();
+							errors.add(e);
+							if (failurePolicy == FailurePolicy.ABORT) {
+								aborted = true;
+								break;
+							}
+						}
+					}
+					if (aborted && failurePolicy == FailurePolicy.ABORT)
+						rollback();
+					else
+						commit();
+				} catch (Throwable e) {
+					rollback();
+					abort(e);
+				} finally {
+					close();
+				}
+			}
+
+			void insert(List<Triple> chunk) throws SQLException {
+				for (Iterator<Triple> i = chunk.iterator(); i.hasNext();) {
+					Triple t = i.next();
+					ps.setString(1, graphName);
+					graph.bindSubject(ps, 2, t.getSubject());
+					graph.bindPredicate(ps, 3, t.getPredicate());
+					graph.bindObject(ps, 4, t.getObject());
+					ps.addBatch();
+				}
+				uncommitted += chunk.size();
+				ps.executeBatch();
+				ps.clearBatch();
+				if (uncommitted >= commitInterval)
+					commit();
+			}
+
+			void commit() throws SQLException {
+				if (uncommitted == 0)
+					return;
+				c.commit();
+				loaded.addAndGet(uncommitted);
+				uncommitted = 0;
+			}
+
+			void rollback() {
+				failed.addAndGet(uncommitted);
+				uncommitted = 0;
+				try {
+					if (ps != null)
+						ps.clearBatch();
+					if (c != null)
+						c.rollback();
+				} catch (Exception e) {
+				}
+			}
+
+			void close() {
+				try {
+					if (ps != null)
+						ps.close();
+				} catch (Exception e) {
+				}
+				try {
+					if (c != null) {
+						c.setAutoCommit(true);
+						c.close();
+					}
+				} catch (Exception e) {
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+
+/**
+ * SPARQL query text with the variables of an initial binding replaced by
+ * JDBC parameter markers. The text only depends on which variables are
+ * bound and on the kind of their values, so repeated executions with
+ * different values share one prepared statement.
+ */
+public class VirtParameterizedQuery {
+
+	static final String IRI_PARAM = "`iri(??)`";
+	static final String LITERAL_PARAM = "`bif:__rdf_long_from_batch_params(??,??,??)`";
+
+	private String text;
+	private List<Node> params;
+
+	private VirtParameterizedQuery(String _text, List<Node> _params) {
+		text = _text;
+		params = _params;
+	}
+
+	/**
+	 * Replace the bound variables of query with parameter markers.
+	 */
+	public static VirtParameterizedQuery create(String query, Binding args) {
+		List<Node> params = new ArrayList<Node>();
+		String text = scan(query, args, params);
+		return new VirtParameterizedQuery(text, params);
+	}
+
+	/**
+	 * Replace the bound variables of query inline with their values.
+	 */
+	public static String substitute(String query, Binding args) {
+		if (args == null)
+			return query;
+		return scan(query, args, null);
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public int getParameterCount() {
+		return params.size();
+	}
+
+	/**
+	 * Bind the parameter values to ps starting at column col.
+	 *
+	 * @return the next free column
+	 */
+	public int bind(VirtGraph graph, PreparedStatement ps, int col)
+			throws SQLException {
+		for (Iterator<Node> i = params.iterator(); i.hasNext();) {
+			Node n = i.next();
+			if (n.isLiteral()) {
+				graph.bindObject(ps, col, n);
+				col += 3;
+			} else {
+				graph.bindSubject(ps, col, n);
+				col++;
+			}
+		}
+		return col;
+	}
+
+	private static String scan(String query, Binding args, List<Node> params) {
+		StringBuffer buf = new StringBuffer();
+		String delim = " ,)(;.";
+		int i = 0;
+		char ch;
+		int qlen = query.length();
+		while (i < qlen) {
+			ch = query.charAt(i++);
+			if (ch == '\\') {
+				buf.append(ch);
+				if (i < qlen)
+					buf.append(query.charAt(i++));
+
+			} else if (ch == '"' || ch == '\'') {
+				char end = ch;
+				buf.append(ch);
+				while (i < qlen) {
+					ch = query.charAt(i++);
+					buf.append(ch);
+					if (ch == end)
+						break;
+				}
+			} else if (ch == '?') { // Parameter
+				String varData = null;
+				int j = i;
+				while (j < qlen && delim.indexOf(query.charAt(j)) < 0)
+					j++;
+				if (j != i) {
+					String varName = query.substring(i, j);
+					Node val = args.get(Var.alloc(varName));
+					if (val != null) {
+						if (params == null) {
+							varData = VirtGraph.Node2Str(val);
+						} else if (val.isURI() || val.isBlank()) {
+							varData = IRI_PARAM;
+							params.add(val);
+						} else if (val.isLiteral()) {
+							varData = LITERAL_PARAM;
+							params.add(val);
+						} else {
+							varData = VirtGraph.Node2Str(val);
+						}
+						i = j;
+					}
+				}
+				if (varData != null)
+					buf.append(varData);
+				else
+					buf.append(ch);
+			} else {
+				buf.append(ch);
+			}
+		}
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * Streams the quads of a "select ?g ?s ?p ?o" result set. A bound position
+ * of the pattern is not selected and is taken from the pattern; the graph
+ * node may be replaced by a fixed node, e.g. Quad.defaultGraphIRI.
+ */
+public class VirtQuadIter extends NiceIterator<Quad> {
+	private VirtGraph graph;
+	private ResultSet rs;
+	private Statement stmt;
+	private Connection conn;
+	private Node g, s, p, o;
+	private int colG = 0, colS, colP, colO;
+	private Quad row = null;
+	private boolean finished = false;
+
+	/**
+	 * _g, _s, _p and _o are the nodes of the pattern, null for a selected
+	 * position.
+	 */
+	public VirtQuadIter(VirtGraph _graph, ResultSet _rs, Statement _stmt,
+			Connection _conn, Node _g, Node _s, Node _p, Node _o) {
+		graph = _graph;
+		rs = _rs;
+		stmt = _stmt;
+		conn = _conn;
+		g = _g;
+		s = _s;
+		p = _p;
+		o = _o;
+	}
+
+	public boolean hasNext() {
+		if (row == null && !finished)
+			moveForward();
+		return row != null;
+	}
+
+	public Quad next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Quad ret = row;
+		row = null;
+		return ret;
+	}
+
+	private void moveForward() {
+		try {
+			if (rs.next()) {
+				if (colG == 0) { // resolve the columns on the first row
+					colG = (g == null ? rs.findColumn("g") : -1);
+					colS = (s == null ? rs.findColumn("s") : -1);
+					colP = (p == null ? rs.findColumn("p") : -1);
+					colO = (o == null ? rs.findColumn("o") : -1);
+				}
+				row = new Quad(node(g, colG), node(s, colS), node(p, colP),
+						node(o, colO));
+			} else
+				close();
+		} catch (SQLException e) {
+			close();
+			throw new JenaException(e);
+		}
+	}
+
+	private Node node(Node bound, int col) throws SQLException {
+		return bound != null ? bound : VirtGraph.Object2Node(rs.getObject(col));
+	}
+
+	public void close() {
+		if (finished)
+			return;
+		finished = true;
+		try {
+			rs.close();
+			stmt.close();
+		} catch (SQLException e) {
+			throw new JenaException(e);
+		} finally {
+			graph.releaseConnection(conn);
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Loads quads of any number of graphs into a dataset with one batched
+ * sinsert, the graph of every quad being a parameter of the statement.
+ * Quads come from an iterator or are parsed from an N-Quads or TriG stream;
+ * triples of the stream and quads of the default graph go to the dataset's
+ * graph.
+ *
+ * The loader works on a connection of its own and commits every
+ * commitInterval quads. When a batch, the parser or the iterator fails the
+ * uncommitted quads are rolled back and load() throws; the quads committed
+ * before stay in the store. Graph names must be IRIs.
+ * Graph listeners are not notified of the loaded quads.
+ */
+public class VirtQuadLoader {
+
+	private VirtDataSource dataset;
+	private int commitInterval;
+
+	public VirtQuadLoader(VirtDataSource _dataset) {
+		dataset = _dataset;
+		commitInterval = 10 * dataset.getBatchSize();
+	}
+
+	public int getCommitInterval() {
+		return commitInterval;
+	}
+
+	/**
+	 * Set the number of quads after which the load commits. The commit
+	 * happens at the end of the batch that reaches it.
+	 */
+	public void setCommitInterval(int _commitInterval) {
+		commitInterval = _commitInterval;
+	}
+
+	/**
+	 * Load the quads of it.
+	 *
+	 * @return the number of quads loaded
+	 */
+	public long load(Iterator<Quad> it) {
+		Load load = new Load();
+		try {
+			while (it.hasNext())
+				load.quad(it.next());
+			return load.end();
+		} finally {
+			load.close();
+		}
+	}
+
+	/**
+	 * Parse in as lang, Lang.NQUADS or Lang.TRIG or a triple syntax, and
+	 * load the result.
+	 *
+	 * @return the number of quads loaded
+	 */
+	public long load(InputStream in, Lang lang, String base) {
+		Load load = new Load();
+		try {
+			RDFDataMgr.parse(load, in, base, lang, null);
+			return load.end();
+		} finally {
+			load.close();
+		}
+	}
+
+	/**
+	 * Parse the file or URL, the syntax guessed from its name, and load the
+	 * result.
+	 *
+	 * @return the number of quads loaded
+	 */
+	public long load(String filenameOrURL) {
+		Load load = new Load();
+		try {
+			RDFDataMgr.parse(load, filenameOrURL);
+			return load.end();
+		} finally {
+			load.close();
+		}
+	}
+
+	private class Load extends StreamRDFBase {
+		final VirtBatchSizer sizer = dataset.getBatchSizer();
+		final String defaultGraph = dataset.getGraphName();
+		Connection c;
+		PreparedStatement ps;
+		int count = 0;
+		long bytes = 0;
+		long uncommitted = 0;
+		long loaded = 0;
+		boolean ended = false;
+
+		Load() {
+			try {
+				c = dataset.openConnection();
+				c.setAutoCommit(false);
+				ps = c.prepareStatement(VirtGraph.sinsert);
+			} catch (SQLException e) {
+				close();
+				throw new JenaException(e);
+			}
+		}
+
+		public void triple(Triple t) {
+			add(defaultGraph, t);
+		}
+
+		public void quad(Quad q) {
+			Node g = q.getGraph();
+			if (g == null || Quad.isDefaultGraph(g))
+				add(defaultGraph, q.asTriple());
+			else if (g.isURI())
+				add(g.getURI(), q.asTriple());
+			else
+				throw fail(new JenaException("Graph name is not an IRI: " + g));
+		}
+
+		void add(String g, Triple t) {
+			try {
+				ps.setString(1, g);
+				dataset.bindSubject(ps, 2, t.getSubject());
+				dataset.bindPredicate(ps, 3, t.getPredicate());
+				dataset.bindObject(ps, 4, t.getObject());
+				ps.addBatch();
+				count++;
+				bytes += VirtBatchSizer.estimate(t);
+				if (sizer.isFull(count, bytes))
+					flush();
+			} catch (SQLException e) {
+				throw fail(e);
+			}
+		}
+
+		void flush() throws SQLException {
+			if (count > 0) {
+				sizer.execute(ps, count);
+				uncommitted += count;
+				count = 0;
+				bytes = 0;
+			}
+			if (uncommitted >= commitInterval)
+				commit();
+		}
+
+		void commit() throws SQLException {
+			c.commit();
+			loaded += uncommitted;
+			uncommitted = 0;
+		}
+
+		long end() {
+			try {
+				flush();
+				commit();
+			} catch (SQLException e) {
+				throw fail(e);
+			}
+			ended = true;
+			return loaded;
+		}
+
+		JenaException fail(Exception e) {
+			try {
+				c.rollback();
+			} catch (Exception e2) {
+			}
+			return new JenaException("Quad load failed after " + loaded
+					+ " quads", e);
+		}
+
+		void close() {
+			try {
+				if (ps != null)
+					ps.close();
+			} catch (Exception e) {
+			}
+			try {
+				if (c != null) {
+					// a parse error or a failing iterator leaves quads that
+					// setAutoCommit(true) would commit
+					if (!ended)
+						c.rollback();
+					c.setAutoCommit(true);
+					c.close();
+				}
+			} catch (Exception e) {
+			}
+			dataset.graphsChanged();
+		}
+	}
+
+}
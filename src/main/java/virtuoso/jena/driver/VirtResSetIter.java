@@ -23,6 +23,7 @@
 
 package virtuoso.jena.driver;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -42,6 +43,8 @@ public class VirtResSetIter extends NiceIterator<Triple> {
 	protected boolean v_prefetched = false;
 	protected VirtGraph v_graph = null;
 	protected PreparedStatement v_stmt = null;
+	protected Connection v_conn = null;
+	private int v_colS = 0, v_colP = 0, v_colO = 0;
 
 	public VirtResSetIter() {
 		v_finished = true;
@@ -55,6 +58,12 @@ public class VirtResSetIter extends NiceIterator<Triple> {
 		v_stmt = stmt;
 	}
 
+	public VirtResSetIter(VirtGraph graph, ResultSet resultSet, TripleMatch in,
+			PreparedStatement stmt, Connection conn) {
+		this(graph, resultSet, in, stmt);
+		v_conn = conn;
+	}
+
 	public void reset(ResultSet resultSet, PreparedStatement sourceStatement) {
 		v_resultSet = resultSet;
 		v_finished = false;
@@ -108,24 +117,38 @@ public class VirtResSetIter extends NiceIterator<Triple> {
 	protected void extractRow() throws Exception {
 		Node NodeS, NodeP, NodeO;
 
+		if (v_colS == 0) { // resolve the columns on the first row
+			v_colS = findColumn("s");
+			v_colP = findColumn("p");
+			v_colO = findColumn("o");
+		}
+
 		if (v_in.getMatchSubject() != null)
 			NodeS = v_in.getMatchSubject();
 		else
-			NodeS = VirtGraph.Object2Node(v_resultSet.getObject("s"));
+			NodeS = VirtGraph.Object2Node(v_resultSet.getObject(v_colS));
 
 		if (v_in.getMatchPredicate() != null)
 			NodeP = v_in.getMatchPredicate();
 		else
-			NodeP = VirtGraph.Object2Node(v_resultSet.getObject("p"));
+			NodeP = VirtGraph.Object2Node(v_resultSet.getObject(v_colP));
 
 		if (v_in.getMatchObject() != null)
 			NodeO = v_in.getMatchObject();
 		else
-			NodeO = VirtGraph.Object2Node(v_resultSet.getObject("o"));
+			NodeO = VirtGraph.Object2Node(v_resultSet.getObject(v_colO));
 
 		v_row = new Triple(NodeS, NodeP, NodeO);
 	}
 
+	private int findColumn(String label) {
+		try {
+			return v_resultSet.findColumn(label);
+		} catch (SQLException e) {
+			return -1; // bound in the match, not selected
+		}
+	}
+
 	protected Triple getRow() {
 		return v_row;
 	}
@@ -140,12 +163,21 @@ public class VirtResSetIter extends NiceIterator<Triple> {
 					v_stmt = null;
 				} catch (SQLException e) {
 					throw new JenaException(e);
+				} finally {
+					releaseConnection();
 				}
 			}
 		}
 		v_finished = true;
 	}
 
+	protected void releaseConnection() {
+		if (v_conn != null && v_graph != null) {
+			v_graph.releaseConnection(v_conn);
+			v_conn = null;
+		}
+	}
+
 	protected void finalize() throws SQLException {
 		if (!v_finished && v_resultSet != null)
 			close();
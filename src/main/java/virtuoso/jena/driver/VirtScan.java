@@ -0,0 +1,450 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * Scans a graph in pages instead of one long cursor. The subjects are cut
+ * into ranges of their IRI_ID and each range is a Partition: an iterator
+ * that fetches the triples of the next pageSize subjects after the last one
+ * it returned, on a connection of its own. The subjects of a page are read
+ * from DB.DBA.RDF_QUAD in the order of its (G, S) index, or its (S, P)
+ * index when reading from all graphs, so a page costs an index seek and not
+ * a sort of the remaining subjects. Their triples are then fetched with one
+ * SPARQL query. Every page is a short query, so no cursor stays open on the
+ * server between pages, and a page is fetched completely or not at all.
+ *
+ * The subjects are those of the stored quads; with a rule set the inferred
+ * triples of these subjects are returned, but subjects that only have
+ * inferred triples are not.
+ *
+ * A failed page is retried up to maxRetries times on a new connection.
+ * After that the partition throws, and getPosition() tells where a new
+ * partition can restart it.
+ *
+ * Partitions can be consumed by separate threads; scan(parts, handler)
+ * does so with one thread per partition.
+ */
+public class VirtScan {
+
+	/**
+	 * Receives the triples of a parallel scan, from several threads at once.
+	 */
+	public interface Handler {
+		void triple(Triple t);
+	}
+
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private VirtGraph graph;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private int maxRetries = 3;
+
+	public VirtScan(VirtGraph _graph) {
+		graph = _graph;
+	}
+
+	public VirtScan(VirtGraph _graph, int _pageSize) {
+		this(_graph);
+		setPageSize(_pageSize);
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Set the number of subjects fetched in one page.
+	 */
+	public void setPageSize(int _pageSize) {
+		if (_pageSize < 1)
+			throw new IllegalArgumentException("pageSize < 1");
+		pageSize = _pageSize;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int _maxRetries) {
+		maxRetries = _maxRetries;
+	}
+
+	/**
+	 * Cut the graph into at most parts partitions, see subjectBounds.
+	 */
+	public List<Partition> partitions(int parts) {
+		List<Long> bounds = parts > 1 ? subjectBounds(graph, parts)
+				: Collections.<Long> emptyList();
+		List<Partition> ret = new ArrayList<Partition>();
+		for (int i = 0; i <= bounds.size(); i++)
+			ret.add(new Partition(i > 0 ? bounds.get(i - 1) : null,
+					i < bounds.size() ? bounds.get(i) : null, null));
+		return ret;
+	}
+
+	/**
+	 * The part of the IRI_ID range [lo, hi) after the subject at position,
+	 * for restarting a failed partition. Any argument may be null.
+	 */
+	public Partition partition(Long lo, Long hi, Long position) {
+		return new Partition(lo, hi, position);
+	}
+
+	/**
+	 * Hand every triple of the graph to handler, scanning parts partitions
+	 * in parallel.
+	 *
+	 * @return the number of triples scanned
+	 */
+	public long scan(int parts, final Handler handler) {
+		List<Partition> list = partitions(parts);
+		final long[] counts = new long[list.size()];
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int i = 0; i < list.size(); i++) {
+			final int n = i;
+			final Partition p = list.get(i);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (p.hasNext()) {
+							handler.triple(p.next());
+							counts[n]++;
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						p.close();
+					}
+				}
+			}, "VirtScan-" + i);
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+
+		long total = 0;
+		for (int i = 0; i < threads.size(); i++) {
+			try {
+				threads.get(i).join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new JenaException(e);
+			}
+			total += counts[i];
+		}
+		if (!errors.isEmpty())
+			throw new JenaException("Scan failed", errors.get(0));
+		return total;
+	}
+
+	/**
+	 * A range of subjects, read page by page.
+	 */
+	public class Partition extends NiceIterator<Triple> {
+		private final Long lo;
+		private final Long hi;
+		private Long position;
+		private Connection conn = null;
+		private Iterator<Triple> page = Collections.<Triple> emptyList()
+				.iterator();
+		private boolean lastPage = false;
+		private boolean closed = false;
+
+		Partition(Long _lo, Long _hi, Long _position) {
+			lo = _lo;
+			hi = _hi;
+			position = _position;
+		}
+
+		public Long getLow() {
+			return lo;
+		}
+
+		public Long getHigh() {
+			return hi;
+		}
+
+		/**
+		 * The IRI_ID number of the last subject whose triples have all been
+		 * fetched, null before the first page.
+		 */
+		public Long getPosition() {
+			return position;
+		}
+
+		public boolean hasNext() {
+			while (!page.hasNext()) {
+				if (lastPage || closed) {
+					close();
+					return false;
+				}
+				fetch();
+			}
+			return true;
+		}
+
+		public Triple next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return page.next();
+		}
+
+		public void close() {
+			closed = true;
+			closeConnection();
+		}
+
+		private void fetch() {
+			for (int attempt = 0;; attempt++) {
+				try {
+					fetchPage();
+					return;
+				} catch (SQLException e) {
+					closeConnection();
+					if (attempt >= maxRetries)
+						throw new JenaException("Scan failed after "
+								+ position, e);
+				}
+			}
+		}
+
+		private void fetchPage() throws SQLException {
+			if (conn == null)
+				conn = graph.openConnection();
+			List<String> subjects = new ArrayList<String>(pageSize);
+			Long last = nextSubjects(conn, graph, lo, hi, position,
+					pageSize, subjects);
+			List<Triple> rows = new ArrayList<Triple>();
+			if (!subjects.isEmpty()) {
+				Statement st = conn.createStatement();
+				try {
+					st.setFetchSize(Math.max(graph.getFetchSize(), pageSize));
+					ResultSet rs = st.executeQuery(triplesQuery(graph,
+							subjects, false));
+					while (rs.next()) {
+						Node s = VirtGraph.Object2Node(rs.getObject(1));
+						Node p = VirtGraph.Object2Node(rs.getObject(2));
+						Node o = VirtGraph.Object2Node(rs.getObject(3));
+						rows.add(new Triple(s, p, o));
+					}
+					rs.close();
+				} finally {
+					st.close();
+				}
+			}
+			page = rows.iterator();
+			if (last != null)
+				position = last;
+			lastPage = (subjects.size() < pageSize);
+		}
+
+		private void closeConnection() {
+			try {
+				if (conn != null)
+					conn.close();
+			} catch (Exception e) {
+			}
+			conn = null;
+		}
+	}
+
+	// shared with VirtExporter
+
+	static String prologue(VirtGraph g) {
+		StringBuilder sb = new StringBuilder("sparql ");
+		if (g.getRuleSet() != null)
+			sb.append(" define input:inference '" + g.getRuleSet() + "'\n ");
+		if (g.getSameAs())
+			sb.append(" define input:same-as \"yes\"\n ");
+		return sb.toString();
+	}
+
+	static String from(VirtGraph g) {
+		return g.getReadFromAllGraphs() ? "" : " from <" + g.getGraphName()
+				+ ">";
+	}
+
+	/**
+	 * The SPARQL query for the triples of the given subjects, with the graph
+	 * as a fourth column if withGraph.
+	 */
+	static String triplesQuery(VirtGraph g, List<String> subjects,
+			boolean withGraph) {
+		StringBuilder sb = new StringBuilder(prologue(g));
+		sb.append(withGraph ? " select ?s ?p ?o ?g" : " select ?s ?p ?o");
+		sb.append(from(g));
+		sb.append(withGraph ? " where { graph ?g { ?s ?p ?o" : " where { ?s ?p ?o");
+		sb.append(" filter (?s in (");
+		for (int i = 0; i < subjects.size(); i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append('<').append(subjects.get(i)).append('>');
+		}
+		sb.append("))");
+		return sb.append(withGraph ? " } }" : " }").toString();
+	}
+
+	// the quads of g in DB.DBA.RDF_QUAD, with the S conditions appended
+	private static String quadsWhere(VirtGraph g) {
+		return g.getReadFromAllGraphs() ? " from DB.DBA.RDF_QUAD where 1 = 1"
+				: " from DB.DBA.RDF_QUAD where G = iri_to_id(?, 0)";
+	}
+
+	private static PreparedStatement prepareQuads(Connection c, VirtGraph g,
+			String sql) throws SQLException {
+		PreparedStatement ps = c.prepareStatement(sql);
+		if (!g.getReadFromAllGraphs())
+			ps.setString(1, g.getGraphName());
+		return ps;
+	}
+
+	/**
+	 * Add the IRIs of the next limit subjects of g with an IRI_ID number in
+	 * [lo, hi) and greater than after to subjects, in IRI_ID order; blank
+	 * nodes are given as nodeID:// IRIs. Any bound may be null.
+	 *
+	 * @return the IRI_ID number of the last subject, null if there is none
+	 */
+	static Long nextSubjects(Connection c, VirtGraph g, Long lo, Long hi,
+			Long after, int limit, List<String> subjects) throws SQLException {
+		StringBuilder sb = new StringBuilder(
+				"select iri_id_num(S), id_to_iri(S) from (select distinct top ");
+		sb.append(limit).append(" S").append(quadsWhere(g));
+		if (after != null)
+			sb.append(" and S > iri_id_from_num(").append(after).append(")");
+		else if (lo != null)
+			sb.append(" and S >= iri_id_from_num(").append(lo).append(")");
+		if (hi != null)
+			sb.append(" and S < iri_id_from_num(").append(hi).append(")");
+		sb.append(" order by S) x order by 1");
+
+		PreparedStatement ps = prepareQuads(c, g, sb.toString());
+		Long last = null;
+		try {
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				long id = rs.getLong(1);
+				subjects.add(rs.getString(2));
+				if (last == null || id > last.longValue())
+					last = Long.valueOf(id);
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return last;
+	}
+
+	/**
+	 * The IRI_ID numbers that cut the subjects of g into parts ranges,
+	 * ascending. Named IRIs and blank nodes are numbered in separate ranges
+	 * in the order they were created, so both ranges are cut evenly by
+	 * number, which takes four index seeks and no count. The parts are
+	 * about equal when the ids of the subjects are dense, as they are for a
+	 * graph loaded in one go.
+	 */
+	static List<Long> subjectBounds(VirtGraph g, int parts) {
+		List<Long> bounds = new ArrayList<Long>();
+		Connection c = null;
+		try {
+			c = g.acquireConnection();
+			long[][] spans = {
+					idSpan(c, g, " and S < min_bnode_iri_id()"),
+					idSpan(c, g, " and S >= min_bnode_iri_id()") };
+			long width = 0;
+			long min = Long.MAX_VALUE;
+			for (long[] span : spans)
+				if (span != null) {
+					width += span[1] - span[0] + 1;
+					min = Math.min(min, span[0]);
+				}
+
+			for (int i = 1; i < parts; i++) {
+				long off = (long) ((double) width * i / parts);
+				for (long[] span : spans) {
+					if (span == null)
+						continue;
+					long w = span[1] - span[0] + 1;
+					if (off < w) {
+						long b = span[0] + off;
+						if (b > min && (bounds.isEmpty()
+								|| bounds.get(bounds.size() - 1) < b))
+							bounds.add(Long.valueOf(b));
+						break;
+					}
+					off -= w;
+				}
+			}
+		} catch (SQLException e) {
+			throw new JenaException(e);
+		} finally {
+			g.releaseConnection(c);
+		}
+		return bounds;
+	}
+
+	// the smallest and largest IRI_ID number of the subjects of g matching
+	// cond, null if there are none
+	private static long[] idSpan(Connection c, VirtGraph g, String cond)
+			throws SQLException {
+		long[] span = new long[2];
+		String[] orders = { " order by S", " order by S desc" };
+		for (int i = 0; i < 2; i++) {
+			PreparedStatement ps = prepareQuads(c, g, "select top 1 iri_id_num(S)"
+					+ quadsWhere(g) + cond + orders[i]);
+			try {
+				ResultSet rs = ps.executeQuery();
+				boolean found = rs.next();
+				if (found)
+					span[i] = rs.getLong(1);
+				rs.close();
+				if (!found)
+					return null;
+			} finally {
+				ps.close();
+			}
+		}
+		return span;
+	}
+
+}
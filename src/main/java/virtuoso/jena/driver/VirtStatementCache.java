@@ -0,0 +1,154 @@
+/*
+ *  $Id$
+ *
+ *  This file is part of the OpenLink Software Virtuoso Open-Source (VOS)
+ *  project.
+ *
+ *  Copyright (C) 1998-2012 OpenLink Software
+ *
+ *  This project is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU General Public License as published by the
+ *  Free Software Foundation; only version 2 of the License, dated June 1991.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ *
+ */
+
+package virtuoso.jena.driver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of prepared statements for a single connection, keyed by
+ * SQL text.
+ *
+ * A statement is taken out of the cache by acquire() and handed back by
+ * release(), so two callers never bind parameters on the same statement at
+ * the same time. Statements acquired before a clear() are closed instead of
+ * being returned to the cache.
+ */
+public class VirtStatementCache {
+
+	static final int DEFAULT_SIZE = 32;
+
+	private VirtGraph graph;
+	private Connection connection;
+	private int maxSize;
+	private int epoch = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	private LinkedHashMap<String, PreparedStatement> idle;
+	private Map<PreparedStatement, Integer> inUse = new IdentityHashMap<PreparedStatement, Integer>();
+
+	public VirtStatementCache(VirtGraph _graph, Connection _connection,
+			int _maxSize) {
+		graph = _graph;
+		connection = _connection;
+		maxSize = _maxSize;
+		idle = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > maxSize) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public synchronized PreparedStatement acquire(String sql)
+			throws SQLException {
+		PreparedStatement ps = idle.remove(sql);
+
+		if (ps != null) {
+			hits++;
+		} else {
+			misses++;
+			ps = connection.prepareStatement(sql);
+			graph.configureStatement(ps);
+		}
+		inUse.put(ps, Integer.valueOf(epoch));
+		return ps;
+	}
+
+	public synchronized void release(String sql, PreparedStatement ps) {
+		if (ps == null)
+			return;
+
+		Integer e = inUse.remove(ps);
+		if (e == null || e.intValue() != epoch || maxSize <= 0
+				|| idle.containsKey(sql)) {
+			closeQuietly(ps);
+			return;
+		}
+
+		try {
+			ps.clearBatch();
+			ps.clearParameters();
+		} catch (SQLException ex) {
+			closeQuietly(ps);
+			return;
+		}
+		idle.put(sql, ps);
+	}
+
+	/**
+	 * Close all idle statements. Statements currently in use are closed when
+	 * they are released.
+	 */
+	public synchronized void clear() {
+		for (Iterator<PreparedStatement> i = idle.values().iterator(); i
+				.hasNext();)
+			closeQuietly(i.next());
+		idle.clear();
+		epoch++;
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(int _maxSize) {
+		maxSize = _maxSize;
+		clear();
+	}
+
+	public synchronized int size() {
+		return idle.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (Exception e) {
+		}
+	}
+
+}
@@ -59,6 +59,10 @@ public class VirtTransactionHandler extends TransactionHandlerBase {
 
 	public void begin() {
 		if (transactionsSupported()) {
+			// the lock serializes transactions of different threads; a
+			// second begin in the same thread would deadlock on it
+			if (!graph.enterTransaction())
+				throw new JenaException("Transaction already active");
 			try {
 				Connection c = graph.getConnection();
 				if (c.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED) {
@@ -68,6 +72,7 @@ public class VirtTransactionHandler extends TransactionHandlerBase {
 					c.setAutoCommit(false);
 				}
 			} catch (SQLException e) {
+				graph.leaveTransaction();
 				throw new JenaException("Transaction begin failed: ", e);
 			}
 		} else {
@@ -84,6 +89,8 @@ public class VirtTransactionHandler extends TransactionHandlerBase {
 				c.setAutoCommit(true);
 			} catch (SQLException e) {
 				throw new JenaException("Transaction rollback failed: ", e);
+			} finally {
+				graph.leaveTransaction();
 			}
 		} else {
 			notSupported("abort transaction");
@@ -98,6 +105,8 @@ public class VirtTransactionHandler extends TransactionHandlerBase {
 				c.setAutoCommit(true);
 			} catch (SQLException e) {
 				throw new JenaException("Transaction commit failed: ", e);
+			} finally {
+				graph.leaveTransaction();
 			}
 		} else {
 			notSupported("commit transaction");
@@ -22,17 +22,26 @@
  */
 package virtuoso.jena.driver;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
 import org.apache.jena.atlas.io.IndentedWriter;
 
+import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.sparql.ARQInternalErrorException;
 import com.hp.hpl.jena.sparql.algebra.Op;
-import com.hp.hpl.jena.sparql.algebra.Transform;
-import com.hp.hpl.jena.sparql.algebra.TransformCopy;
-import com.hp.hpl.jena.sparql.algebra.Transformer;
-import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.Op1;
+import com.hp.hpl.jena.sparql.algebra.op.Op2;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph;
+import com.hp.hpl.jena.sparql.algebra.op.OpN;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
 import com.hp.hpl.jena.sparql.core.DatasetGraph;
 import com.hp.hpl.jena.sparql.core.Var;
 import com.hp.hpl.jena.sparql.engine.Plan;
@@ -40,15 +49,27 @@ import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
 import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
 import com.hp.hpl.jena.sparql.engine.QueryIterator;
 import com.hp.hpl.jena.sparql.engine.binding.Binding;
-import com.hp.hpl.jena.sparql.engine.binding.BindingHashMap;
-import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.binding.BindingRoot;
 import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorBase;
 import com.hp.hpl.jena.sparql.engine.main.QueryEngineMain;
 import com.hp.hpl.jena.sparql.serializer.SerializationContext;
 import com.hp.hpl.jena.sparql.util.Context;
+import com.hp.hpl.jena.sparql.util.Symbol;
 import com.hp.hpl.jena.sparql.util.Utils;
 
 public class VirtuosoQueryEngine extends QueryEngineMain {
+
+	/**
+	 * Context key for the number of input bindings sent to Virtuoso in one
+	 * query when a pushed down sub-tree is joined with bindings computed by
+	 * ARQ. A value of 1 or less runs one query per binding.
+	 */
+	public static final Symbol boundJoinBatchSize = Symbol
+			.create("http://www.openlinksw.com/schemas/virtjena#boundJoinBatchSize");
+
+	static final int DEFAULT_BOUND_JOIN_BATCH_SIZE = 200;
+	private static volatile int defaultBoundJoinBatchSize = DEFAULT_BOUND_JOIN_BATCH_SIZE;
+
 	private Query eQuery = null;
 
 	public VirtuosoQueryEngine(Query query, DatasetGraph dataset,
@@ -61,76 +82,181 @@ public class VirtuosoQueryEngine extends QueryEngineMain {
 		this(query, dataset, null, null);
 	}
 
+	public VirtuosoQueryEngine(Op op, DatasetGraph dataset, Binding input,
+			Context context) {
+		super(op, dataset, input, context);
+	}
+
 	@Override
 	public QueryIterator eval(Op op, DatasetGraph dsg, Binding initial,
 			Context context) {
-		// Extension point: access possible to all the parameters for execution.
-		// Be careful to deal with initial bindings.
-		Transform transform = new VirtTransform();
-		op = Transformer.transform(transform, op);
+		// The whole query is sent to Virtuoso when all of its data lives
+		// there, otherwise only the sub-trees over VirtGraph data are.
+		if (eQuery != null && isVirtuosoOnly(op, dsg))
+			return evalQuery((VirtGraph) dsg.getDefaultGraph(), initial);
 
-		VirtGraph vg = (VirtGraph) dsg.getDefaultGraph();
-		String query = fixQuery(eQuery.toString(), initial, vg);
+		op = pushDown(op, dsg.getDefaultGraph(), dsg);
+		return super.eval(op, dsg, initial, context);
+	}
 
+	private QueryIterator evalQuery(VirtGraph vg, Binding initial) {
+		java.sql.Connection conn = null;
+		String cached = null;
+		java.sql.Statement stmt = null;
 		try {
-			java.sql.Statement stmt = vg.createStatement();
+			conn = vg.acquireConnection();
+			if (vg.getParameterizedQueries() && initial != null
+					&& !initial.isEmpty()) {
+				VirtParameterizedQuery pq = VirtParameterizedQuery.create(
+						eQuery.toString(), initial);
+				cached = fixQuery(pq.getText(), null, vg);
+				java.sql.PreparedStatement ps = vg.prepareCachedStatement(
+						conn, cached);
+				stmt = ps;
+				pq.bind(vg, ps, 1);
+				java.sql.ResultSet rs = ps.executeQuery();
+				return (QueryIterator) new VQueryIterator(vg, rs, ps, conn,
+						cached, null);
+			}
+
+			String query = fixQuery(eQuery.toString(), initial, vg);
+			stmt = vg.createStatement(conn);
 			java.sql.ResultSet rs = stmt.executeQuery(query);
-			return (QueryIterator) new VQueryIterator(vg, rs);
+			return (QueryIterator) new VQueryIterator(vg, rs, stmt, conn, null,
+					null);
 		} catch (Exception e) {
-			throw new JenaException("Can not create QueryIterator.:" + e);
+			// the statement is not handed to an iterator, give it back here
+			if (cached != null)
+				vg.releaseCachedStatement(conn, cached,
+						(java.sql.PreparedStatement) stmt);
+			else
+				closeQuietly(stmt);
+			vg.releaseConnection(conn);
+			throw new JenaException("Can not create QueryIterator.", e);
 		}
 	}
 
-	private String substBindings(String query, Binding args) {
-		if (args == null)
-			return query;
-
-		StringBuffer buf = new StringBuffer();
-		String delim = " ,)(;.";
-		int i = 0;
-		char ch;
-		int qlen = query.length();
-		while (i < qlen) {
-			ch = query.charAt(i++);
-			if (ch == '\\') {
-				buf.append(ch);
-				if (i < qlen)
-					buf.append(query.charAt(i++));
-
-			} else if (ch == '"' || ch == '\'') {
-				char end = ch;
-				buf.append(ch);
-				while (i < qlen) {
-					ch = query.charAt(i++);
-					buf.append(ch);
-					if (ch == end)
-						break;
-				}
-			} else if (ch == '?') { // Parameter
-				String varData = null;
-				int j = i;
-				while (j < qlen && delim.indexOf(query.charAt(j)) < 0)
-					j++;
-				if (j != i) {
-					String varName = query.substring(i, j);
-					Node val = args.get(Var.alloc(varName));
-					if (val != null) {
-						varData = VirtGraph.Node2Str(val);
-						i = j;
-					}
-				}
-				if (varData != null)
-					buf.append(varData);
-				else
-					buf.append(ch);
-			} else {
-				buf.append(ch);
+	private static void closeQuietly(java.sql.Statement stmt) {
+		try {
+			if (stmt != null)
+				stmt.close();
+		} catch (Exception e) {
+		}
+	}
+
+	/**
+	 * Execute a SPARQL query against vg and return its solutions, each
+	 * extended by parent.
+	 */
+	static QueryIterator execQuery(VirtGraph vg, String query, Binding parent) {
+		java.sql.Connection conn = null;
+		java.sql.Statement stmt = null;
+		try {
+			conn = vg.acquireConnection();
+			stmt = vg.createStatement(conn);
+			java.sql.ResultSet rs = stmt.executeQuery(fixQuery(query, null, vg));
+			return new VQueryIterator(vg, rs, stmt, conn, null,
+					parent != null ? parent : BindingRoot.create());
+		} catch (Exception e) {
+			closeQuietly(stmt);
+			vg.releaseConnection(conn);
+			throw new JenaException("Can not create QueryIterator.", e);
+		}
+	}
+
+	private static boolean isVirtuosoOnly(Op op, DatasetGraph dsg) {
+		if (!(dsg.getDefaultGraph() instanceof VirtGraph))
+			return false;
+		if (!(dsg instanceof VirtDataSource.VirtDataSetGraph)
+				&& dsg.listGraphNodes().hasNext())
+			return false;
+
+		final boolean[] service = { false };
+		OpWalker.walk(op, new OpVisitorBase() {
+			@Override
+			public void visit(OpService opService) {
+				service[0] = true;
 			}
+		});
+		return !service[0];
+	}
+
+	/**
+	 * Replace the maximal sub-trees of op that can be evaluated by Virtuoso
+	 * with VirtOp. active is the graph the patterns of op are matched
+	 * against.
+	 */
+	static Op pushDown(Op op, Graph active, DatasetGraph dsg) {
+		if (active instanceof VirtGraph && VirtOp.isPushable(op))
+			return new VirtOp(op, (VirtGraph) active);
+
+		if (op instanceof OpGraph) {
+			OpGraph opGraph = (OpGraph) op;
+			Node gn = opGraph.getNode();
+			if (!gn.isURI()) // GRAPH ?g is iterated by ARQ
+				return op;
+			return opGraph.copy(pushDown(opGraph.getSubOp(), dsg.getGraph(gn),
+					dsg));
+		}
+		if (op instanceof OpService)
+			return op;
+		if (op instanceof Op1) {
+			Op1 op1 = (Op1) op;
+			return op1.copy(pushDown(op1.getSubOp(), active, dsg));
+		}
+		if (op instanceof Op2) {
+			Op2 op2 = (Op2) op;
+			return op2.copy(pushDown(op2.getLeft(), active, dsg),
+					pushDown(op2.getRight(), active, dsg));
+		}
+		if (op instanceof OpN) {
+			OpN opN = (OpN) op;
+			List<Op> elts = new ArrayList<Op>();
+			for (Iterator<Op> i = opN.iterator(); i.hasNext();)
+				elts.add(pushDown(i.next(), active, dsg));
+			return opN.copy(elts);
 		}
-		return buf.toString();
+		return op;
+	}
+
+	/**
+	 * Set the bound join batch size used when the query context does not
+	 * set boundJoinBatchSize.
+	 */
+	public static void setDefaultBoundJoinBatchSize(int size) {
+		defaultBoundJoinBatchSize = size;
 	}
 
-	private String fixQuery(String query, Binding args, VirtGraph vg) {
+	public static int getDefaultBoundJoinBatchSize() {
+		return defaultBoundJoinBatchSize;
+	}
+
+	static int getBoundJoinBatchSize(Context context) {
+		Object v = (context != null ? context.get(boundJoinBatchSize) : null);
+		if (v instanceof Number)
+			return ((Number) v).intValue();
+		if (v != null)
+			try {
+				return Integer.parseInt(v.toString().trim());
+			} catch (NumberFormatException e) {
+				throw new JenaException("Bad value for boundJoinBatchSize: "
+						+ v);
+			}
+		return defaultBoundJoinBatchSize;
+	}
+
+	// Decided from the types alone: the factory asks for every query in
+	// the JVM, so listing the named graphs here would cost a query each.
+	static boolean isVirtDataset(DatasetGraph dsg) {
+		return dsg instanceof VirtDataSource.VirtDataSetGraph
+				|| dsg.getDefaultGraph() instanceof VirtGraph;
+	}
+
+	private static String substBindings(String query, Binding args) {
+		return VirtParameterizedQuery.substitute(query, args);
+	}
+
+	private static String fixQuery(String query, Binding args, VirtGraph vg) {
 		StringBuffer sb = new StringBuffer("sparql\n ");
 
 		if (vg.getRuleSet() != null)
@@ -176,70 +302,90 @@ public class VirtuosoQueryEngine extends QueryEngineMain {
 		QueryEngineRegistry.removeFactory(factory);
 	}
 
-	private class VirtTransform extends TransformCopy {
-		// Example, do nothing tranform.
-		@Override
-		public Op transform(OpBGP opBGP) {
-			return opBGP;
-		}
-	}
-
 	private static class VirtQueryEngineFactory implements QueryEngineFactory {
-		// Accept any dataset for query execution
+		// Accept datasets with Virtuoso data for query execution
 		public boolean accept(Query query, DatasetGraph dataset, Context context) {
-			if (dataset instanceof VirtDataSource.VirtDataSetGraph)
-				return true;
-			if (dataset.getDefaultGraph() instanceof VirtGraph)
-				return true;
-			return false;
+			return isVirtDataset(dataset);
 		}
 
 		public Plan create(Query query, DatasetGraph dataset, Binding initial,
 				Context context) {
-			if (!(dataset instanceof VirtDataSource.VirtDataSetGraph)) {
-				if (!(dataset.getDefaultGraph() instanceof VirtGraph))
-					throw new ARQInternalErrorException(
-							"VirtQueryEngineFactory: only factory VirtuosoDatasetGraph is supported");
-			}
+			if (!isVirtDataset(dataset))
+				throw new ARQInternalErrorException(
+						"VirtQueryEngineFactory: dataset has no VirtGraph");
 			// Create a query engine instance.
 			VirtuosoQueryEngine engine = new VirtuosoQueryEngine(query,
 					dataset, initial, context);
 			return engine.getPlan();
 		}
 
-		public boolean accept(Op op, DatasetGraph dataset, Context context) { // Refuse
-																				// to
-																				// accept
-																				// algebra
-																				// expressions
-																				// directly.
-			return false;
+		public boolean accept(Op op, DatasetGraph dataset, Context context) {
+			return isVirtDataset(dataset);
 		}
 
 		public Plan create(Op op, DatasetGraph dataset, Binding inputBinding,
-				Context context) { // Shodul notbe called because acceept/Op is
-									// false
-			throw new ARQInternalErrorException(
-					"VirtQueryEngineFactory: factory calleddirectly with an algebra expression");
+				Context context) {
+			if (!isVirtDataset(dataset))
+				throw new ARQInternalErrorException(
+						"VirtQueryEngineFactory: dataset has no VirtGraph");
+			VirtuosoQueryEngine engine = new VirtuosoQueryEngine(op, dataset,
+					inputBinding, context);
+			return engine.getPlan();
 		}
 	}
 
-	protected class VQueryIterator extends QueryIteratorBase {
+	protected static class VQueryIterator extends QueryIteratorBase {
 		java.sql.ResultSetMetaData rsmd;
 		java.sql.ResultSet rs;
+		volatile java.sql.Statement stmt;
+		java.sql.Connection conn;
+		String cachedSql;
 		VirtGraph vg;
 		boolean v_finished = false;
 		boolean v_prefetched = false;
-		BindingMap v_row;
+		Binding v_row;
 		String virt_graph = null;
-
-		protected VQueryIterator(VirtGraph _g, java.sql.ResultSet _rs) {
+		Binding parent;
+		Var[] vars;
+		int[] cols;
+		Node graphNode = null;
+
+		protected VQueryIterator(VirtGraph _g, java.sql.ResultSet _rs,
+				java.sql.Statement _stmt, java.sql.Connection _conn,
+				String _cachedSql, Binding _parent) {
 			rs = _rs;
+			stmt = _stmt;
+			conn = _conn;
+			cachedSql = _cachedSql;
 			vg = _g;
-			virt_graph = vg.getGraphName();
+			parent = _parent;
+			// solutions of a pushed down sub-tree carry no ?graph column
+			if (parent == null)
+				virt_graph = vg.getGraphName();
 
 			try {
 				rsmd = rs.getMetaData();
+
+				// resolve the columns once, cols[k] is the column of vars[k]
+				// or 0 for the constant ?graph
+				int count = rsmd.getColumnCount();
+				vars = new Var[count + 1];
+				cols = new int[count + 1];
+				int k = 0;
+				for (int i = 1; i <= count; i++) {
+					Var v = Var.alloc(rsmd.getColumnLabel(i));
+					if (parent != null && parent.contains(v))
+						continue;
+					vars[k] = v;
+					cols[k++] = i;
+				}
+				if (virt_graph != null && !virt_graph.equals("virt:DEFAULT")) {
+					graphNode = VirtNodeCache.createURI(virt_graph);
+					vars[k] = Var.alloc("graph");
+					cols[k++] = 0;
+				}
+				vars = Arrays.copyOf(vars, k);
+				cols = Arrays.copyOf(cols, k);
 			} catch (Exception e) {
 				throw new JenaException("VQueryIterator is FAILED.:" + e);
 			}
@@ -277,6 +423,21 @@ public class VirtuosoQueryEngine extends QueryEngineMain {
 					} catch (Exception e) {
 					}
 				}
+				if (stmt != null && cachedSql != null) {
+					vg.releaseCachedStatement(conn, cachedSql,
+							(java.sql.PreparedStatement) stmt);
+					stmt = null;
+				} else if (stmt != null) {
+					try {
+						stmt.close();
+						stmt = null;
+					} catch (Exception e) {
+					}
+				}
+				if (conn != null) {
+					vg.releaseConnection(conn);
+					conn = null;
+				}
 			}
 			v_finished = true;
 		}
@@ -294,17 +455,12 @@ public class VirtuosoQueryEngine extends QueryEngineMain {
 		}
 
 		protected void extractRow() throws Exception {
-			v_row = new BindingHashMap();
-
 			try {
-				for (int i = 1; i <= rsmd.getColumnCount(); i++) {
-					Node n = VirtGraph.Object2Node(rs.getObject(i));
-					if (n != null)
-						v_row.add(Var.alloc(rsmd.getColumnLabel(i)), n);
-				}
-
-				if (virt_graph != null && !virt_graph.equals("virt:DEFAULT"))
-					v_row.add(Var.alloc("graph"), Node.createURI(virt_graph));
+				Node[] values = new Node[vars.length];
+				for (int k = 0; k < vars.length; k++)
+					values[k] = (cols[k] > 0 ? VirtGraph.Object2Node(rs
+							.getObject(cols[k])) : graphNode);
+				v_row = new VirtBinding(parent, vars, values);
 			} catch (Exception e) {
 				throw new JenaException("extractRow is FAILED.:" + e);
 			}
@@ -320,8 +476,12 @@ public class VirtuosoQueryEngine extends QueryEngineMain {
 
 		@Override
 		protected void requestCancel() {
-			// TODO Auto-generated method stub
-
+			java.sql.Statement st = stmt;
+			if (st != null)
+				try {
+					st.cancel();
+				} catch (Exception e) {
+				}
 		}
 
 	}
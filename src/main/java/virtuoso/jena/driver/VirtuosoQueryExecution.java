@@ -28,28 +28,31 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryCancelledException;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.sparql.core.ResultBinding;
 import com.hp.hpl.jena.sparql.core.Var;
 import com.hp.hpl.jena.sparql.engine.binding.Binding;
-import com.hp.hpl.jena.sparql.engine.binding.BindingHashMap;
-import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.binding.BindingUtils;
 import com.hp.hpl.jena.sparql.engine.iterator.QueryIterConcat;
 import com.hp.hpl.jena.sparql.util.Context;
 import com.hp.hpl.jena.sparql.util.ModelUtils;
 import com.hp.hpl.jena.util.FileManager;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
 
 public class VirtuosoQueryExecution implements QueryExecution {
 	private QueryIterConcat output = null;
@@ -58,23 +61,48 @@ public class VirtuosoQueryExecution implements QueryExecution {
 	private String virt_query;
 	private QuerySolution m_arg = null;
 
-	private java.sql.Statement stmt = null;
+	private volatile java.sql.Statement stmt = null;
+	private java.sql.Connection conn = null;
+	private String cachedSql = null;
+	private boolean parameterized;
+
+	private long timeout1 = -1;
+	private long timeout2 = -1;
+	private volatile boolean cancelled = false;
+	private ScheduledFuture<?> overallTimer = null;
+
+	private static ScheduledThreadPoolExecutor timer = null;
 
 	public VirtuosoQueryExecution(String query, VirtGraph _graph) {
 		graph = _graph;
 		virt_graph = graph.getGraphName();
 		virt_query = query;
+		parameterized = graph.getParameterizedQueries();
+	}
+
+	public boolean getParameterized() {
+		return parameterized;
+	}
+
+	/**
+	 * Send the initial binding as JDBC parameters of a cached prepared
+	 * statement instead of inlining it into the query text. Defaults to
+	 * VirtGraph.getParameterizedQueries().
+	 */
+	public void setParameterized(boolean val) {
+		parameterized = val;
 	}
 
 	public ResultSet execSelect() {
 		ResultSet ret = null;
 
 		try {
-			stmt = graph.createStatement();
-			java.sql.ResultSet rs = stmt.executeQuery(getQueryString());
+			java.sql.ResultSet rs = executeQuery();
 
 			return new VResultSet(graph, rs);
 		} catch (Exception e) {
+			closeStatement();
+			checkCancelled();
 			throw new JenaException("Can not create ResultSet.:" + e);
 		}
 	}
@@ -100,27 +128,7 @@ public class VirtuosoQueryExecution implements QueryExecution {
 	}
 
 	public Model execConstruct(Model model) {
-		try {
-			stmt = graph.createStatement();
-			java.sql.ResultSet rs = stmt.executeQuery(getQueryString());
-			ResultSetMetaData rsmd = rs.getMetaData();
-
-			while (rs.next()) {
-				Node s = VirtGraph.Object2Node(rs.getObject(1));
-				Node p = VirtGraph.Object2Node(rs.getObject(2));
-				Node o = VirtGraph.Object2Node(rs.getObject(3));
-				com.hp.hpl.jena.rdf.model.Statement st = ModelUtils
-						.tripleToStatement(model, new Triple(s, p, o));
-				if (st != null)
-					model.add(st);
-			}
-			rs.close();
-			stmt.close();
-			stmt = null;
-
-		} catch (Exception e) {
-			throw new JenaException("Convert results are FAILED.:" + e);
-		}
+		fillModel(model, execConstructTriples());
 		return model;
 	}
 
@@ -129,119 +137,184 @@ public class VirtuosoQueryExecution implements QueryExecution {
 	}
 
 	public Model execDescribe(Model model) {
-		try {
-			stmt = graph.createStatement();
-			java.sql.ResultSet rs = stmt.executeQuery(getQueryString());
-			ResultSetMetaData rsmd = rs.getMetaData();
-			while (rs.next()) {
-				Node s = VirtGraph.Object2Node(rs.getObject(1));
-				Node p = VirtGraph.Object2Node(rs.getObject(2));
-				Node o = VirtGraph.Object2Node(rs.getObject(3));
+		fillModel(model, execDescribeTriples());
+		return model;
+	}
 
+	private void fillModel(Model model, Iterator<Triple> it) {
+		try {
+			while (it.hasNext()) {
 				com.hp.hpl.jena.rdf.model.Statement st = ModelUtils
-						.tripleToStatement(model, new Triple(s, p, o));
+						.tripleToStatement(model, it.next());
 				if (st != null)
 					model.add(st);
 			}
-			rs.close();
-			stmt.close();
-			stmt = null;
-
+		} catch (QueryCancelledException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new JenaException("Convert results are FAILED.:" + e);
+		} finally {
+			NiceIterator.close(it);
 		}
-		return model;
 	}
 
 	public boolean execAsk() {
 		boolean ret = false;
 
 		try {
-			stmt = graph.createStatement();
-			java.sql.ResultSet rs = stmt.executeQuery(getQueryString());
-			ResultSetMetaData rsmd = rs.getMetaData();
+			java.sql.ResultSet rs = executeQuery();
 
 			while (rs.next()) {
 				if (rs.getInt(1) == 1)
 					ret = true;
 			}
 			rs.close();
-			stmt.close();
-			stmt = null;
 
 		} catch (Exception e) {
+			checkCancelled();
 			throw new JenaException("Convert results are FAILED.:" + e);
+		} finally {
+			closeStatement();
 		}
 		return ret;
 	}
 
 	public void abort() {
+		cancel(stmt);
+	}
+
+	public void close() {
 		if (stmt != null)
 			try {
 				stmt.cancel();
 			} catch (Exception e) {
 			}
+		closeStatement();
 	}
 
-	public void close() {
-		if (stmt != null)
+	private void openStatement() throws java.sql.SQLException {
+		conn = graph.acquireConnection();
+		if (parameterized && m_arg != null) {
+			VirtParameterizedQuery pq = VirtParameterizedQuery.create(
+					virt_query, BindingUtils.asBinding(m_arg));
+			cachedSql = getQueryPrefix() + pq.getText();
+			java.sql.PreparedStatement ps = graph.prepareCachedStatement(
+					conn, cachedSql);
+			stmt = ps;
+			pq.bind(graph, ps, 1);
+		} else {
+			stmt = graph.createStatement(conn);
+		}
+	}
+
+	/**
+	 * Run the query with the timeouts of this execution. The server side
+	 * query timeout only has a resolution of whole seconds, so both timeouts
+	 * are also enforced by cancelling the statement from a timer thread.
+	 */
+	private java.sql.ResultSet executeQuery() throws java.sql.SQLException {
+		long first = timeout1;
+		long overall = timeout2;
+
+		cancelled = false;
+		openStatement();
+		if (overall > 0) {
+			stmt.setQueryTimeout((int) ((overall + 999) / 1000));
+			overallTimer = scheduleCancel(stmt, overall);
+		}
+
+		ScheduledFuture<?> firstTimer = null;
+		if (first > 0)
+			firstTimer = scheduleCancel(stmt, first);
+		try {
+			if (cachedSql != null)
+				return ((java.sql.PreparedStatement) stmt).executeQuery();
+			return stmt.executeQuery(getQueryString());
+		} finally {
+			if (firstTimer != null)
+				firstTimer.cancel(false);
+		}
+	}
+
+	private ScheduledFuture<?> scheduleCancel(final java.sql.Statement st,
+			long millis) {
+		return getTimer().schedule(new Runnable() {
+			public void run() {
+				cancel(st);
+			}
+		}, millis, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor getTimer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "VirtuosoQueryExecution-timeout");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);
+		}
+		return timer;
+	}
+
+	private void cancel(java.sql.Statement st) {
+		if (st != null) {
+			cancelled = true;
 			try {
-				stmt.cancel();
-				stmt.close();
+				st.cancel();
 			} catch (Exception e) {
 			}
+		}
 	}
 
-	private String substBindings(String query) {
-		if (m_arg == null)
-			return query;
+	private void checkCancelled() {
+		if (cancelled)
+			throw new QueryCancelledException();
+	}
 
-		StringBuffer buf = new StringBuffer();
-		String delim = " ,)(;.";
-		int i = 0;
-		char ch;
-		int qlen = query.length();
-		while (i < qlen) {
-			ch = query.charAt(i++);
-			if (ch == '\\') {
-				buf.append(ch);
-				if (i < qlen)
-					buf.append(query.charAt(i++));
-
-			} else if (ch == '"' || ch == '\'') {
-				char end = ch;
-				buf.append(ch);
-				while (i < qlen) {
-					ch = query.charAt(i++);
-					buf.append(ch);
-					if (ch == end)
-						break;
-				}
-			} else if (ch == '?') { // Parameter
-				String varData = null;
-				int j = i;
-				while (j < qlen && delim.indexOf(query.charAt(j)) < 0)
-					j++;
-				if (j != i) {
-					String varName = query.substring(i, j);
-					RDFNode val = m_arg.get(varName);
-					if (val != null) {
-						varData = VirtGraph.Node2Str(val.asNode());
-						i = j;
-					}
+	private void closeStatement() {
+		if (overallTimer != null) {
+			overallTimer.cancel(false);
+			overallTimer = null;
+		}
+		if (stmt != null && cachedSql != null) {
+			try {
+				stmt.setQueryTimeout(graph.getQueryTimeout());
+				graph.releaseCachedStatement(conn, cachedSql,
+						(java.sql.PreparedStatement) stmt);
+			} catch (Exception e) {
+				try {
+					stmt.close();
+				} catch (Exception e2) {
 				}
-				if (varData != null)
-					buf.append(varData);
-				else
-					buf.append(ch);
-			} else {
-				buf.append(ch);
 			}
+		} else if (stmt != null)
+			try {
+				stmt.close();
+			} catch (Exception e) {
+			}
+		stmt = null;
+		cachedSql = null;
+		if (conn != null) {
+			graph.releaseConnection(conn);
+			conn = null;
 		}
-		return buf.toString();
+	}
+
+	private String substBindings(String query) {
+		if (m_arg == null)
+			return query;
+		return VirtParameterizedQuery.substitute(query,
+				BindingUtils.asBinding(m_arg));
 	}
 
 	private String getQueryString() {
+		return getQueryPrefix() + substBindings(virt_query);
+	}
+
+	private String getQueryPrefix() {
 		StringBuffer sb = new StringBuffer("sparql\n ");
 
 		if (graph.getRuleSet() != null)
@@ -254,8 +327,6 @@ public class VirtuosoQueryExecution implements QueryExecution {
 			sb.append(" define input:default-graph-uri <"
 					+ graph.getGraphName() + "> \n");
 
-		sb.append(substBindings(virt_query));
-
 		return sb.toString();
 	}
 
@@ -266,9 +337,12 @@ public class VirtuosoQueryExecution implements QueryExecution {
 		boolean v_finished = false;
 		boolean v_prefetched = false;
 		VirtModel m;
-		BindingMap v_row;
+		Binding v_row;
 		List<String> resVars = new LinkedList();
 		int row_id = 0;
+		Var[] vars;
+		Node graphNode = null;
+		int columnCount;
 
 		protected VResultSet(VirtGraph _g, java.sql.ResultSet _rs) {
 			rs = _rs;
@@ -276,11 +350,19 @@ public class VirtuosoQueryExecution implements QueryExecution {
 
 			try {
 				rsmd = rs.getMetaData();
-				for (int i = 1; i <= rsmd.getColumnCount(); i++)
+				columnCount = rsmd.getColumnCount();
+				for (int i = 1; i <= columnCount; i++)
 					resVars.add(rsmd.getColumnLabel(i));
 
-				if (virt_graph != null && !virt_graph.equals("virt:DEFAULT"))
+				if (virt_graph != null && !virt_graph.equals("virt:DEFAULT")) {
 					resVars.add("graph");
+					graphNode = VirtNodeCache.createURI(virt_graph);
+				}
+
+				// resolved once, the rows share these Var objects
+				vars = new Var[resVars.size()];
+				for (int i = 0; i < vars.length; i++)
+					vars[i] = Var.alloc(resVars.get(i));
 			} catch (Exception e) {
 				throw new JenaException(
 						"ViruosoResultBindingsToJenaResults is FAILED.:" + e);
@@ -346,23 +428,23 @@ public class VirtuosoQueryExecution implements QueryExecution {
 				} else
 					close();
 			} catch (Exception e) {
+				close();
+				checkCancelled();
 				throw new JenaException("Convert results are FAILED.:" + e);
 			}
 		}
 
 		protected void extractRow() throws Exception {
-			v_row = new BindingHashMap();
 			row_id++;
 
 			try {
-				for (int i = 1; i <= rsmd.getColumnCount(); i++) {
-					Node n = VirtGraph.Object2Node(rs.getObject(i));
-					if (n != null)
-						v_row.add(Var.alloc(rsmd.getColumnLabel(i)), n);
-				}
+				Node[] values = new Node[vars.length];
+				for (int i = 0; i < columnCount; i++)
+					values[i] = VirtGraph.Object2Node(rs.getObject(i + 1));
 
-				if (virt_graph != null && !virt_graph.equals("virt:DEFAULT"))
-					v_row.add(Var.alloc("graph"), Node.createURI(virt_graph));
+				if (graphNode != null)
+					values[columnCount] = graphNode;
+				v_row = new VirtBinding(null, vars, values);
 			} catch (Exception e) {
 				throw new JenaException(
 						"ViruosoResultBindingsToJenaResults is FAILED.:" + e);
@@ -383,20 +465,75 @@ public class VirtuosoQueryExecution implements QueryExecution {
 					} catch (Exception e) {
 					}
 				}
+				closeStatement();
+			}
+			v_finished = true;
+		}
+
+	}
+
+	// /=== Inner class ===========================================
+	public class VTripleIter extends VirtResSetIter {
+
+		protected VTripleIter(VirtGraph _g, java.sql.ResultSet _rs) {
+			super(_g, _rs, null, null);
+		}
+
+		protected void moveForward() {
+			try {
+				super.moveForward();
+			} catch (JenaException e) {
+				close();
+				checkCancelled();
+				throw e;
+			}
+		}
+
+		protected void extractRow() throws Exception {
+			Node s = VirtGraph.Object2Node(v_resultSet.getObject(1));
+			Node p = VirtGraph.Object2Node(v_resultSet.getObject(2));
+			Node o = VirtGraph.Object2Node(v_resultSet.getObject(3));
+			v_row = new Triple(s, p, o);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException(this.getClass().getName()
+					+ ".remove");
+		}
+
+		public void close() {
+			if (!v_finished) {
+				if (v_resultSet != null) {
+					try {
+						v_resultSet.close();
+						v_resultSet = null;
+					} catch (Exception e) {
+					}
+				}
+				closeStatement();
 			}
 			v_finished = true;
 		}
 
 	}
 
+	/**
+	 * Stream the result triples straight from the JDBC cursor. The statement
+	 * is closed when the iterator is exhausted or closed.
+	 */
 	public Iterator<Triple> execConstructTriples() {
-		// TODO Auto-generated method stub
-		return null;
+		try {
+			java.sql.ResultSet rs = executeQuery();
+			return new VTripleIter(graph, rs);
+		} catch (Exception e) {
+			closeStatement();
+			checkCancelled();
+			throw new JenaException("Can not create ResultSet.:" + e);
+		}
 	}
 
 	public Iterator<Triple> execDescribeTriples() {
-		// TODO Auto-generated method stub
-		return null;
+		return execConstructTriples();
 	}
 
 	public Query getQuery() {
@@ -404,34 +541,44 @@ public class VirtuosoQueryExecution implements QueryExecution {
 		return null;
 	}
 
-	public void setTimeout(long arg0) {
-		// TODO Auto-generated method stub
-
+	public void setTimeout(long timeout) {
+		setTimeout(timeout, TimeUnit.MILLISECONDS);
 	}
 
-	public void setTimeout(long arg0, TimeUnit arg1) {
-		// TODO Auto-generated method stub
-
+	/**
+	 * Set the overall time the query is allowed to run. A negative value
+	 * means no timeout.
+	 */
+	public void setTimeout(long timeout, TimeUnit timeoutUnits) {
+		timeout1 = -1;
+		timeout2 = asMillis(timeout, timeoutUnits);
 	}
 
-	public void setTimeout(long arg0, long arg1) {
-		// TODO Auto-generated method stub
-
+	public void setTimeout(long timeout1, long timeout2) {
+		setTimeout(timeout1, TimeUnit.MILLISECONDS, timeout2,
+				TimeUnit.MILLISECONDS);
 	}
 
-	public void setTimeout(long arg0, TimeUnit arg1, long arg2, TimeUnit arg3) {
-		// TODO Auto-generated method stub
-
+	/**
+	 * Set the time allowed until the first result arrives and the overall
+	 * time the query is allowed to run. Negative values mean no timeout.
+	 */
+	public void setTimeout(long timeout1, TimeUnit timeUnit1, long timeout2,
+			TimeUnit timeUnit2) {
+		this.timeout1 = asMillis(timeout1, timeUnit1);
+		this.timeout2 = asMillis(timeout2, timeUnit2);
 	}
 
 	public long getTimeout1() {
-		// TODO Auto-generated method stub
-		return 0;
+		return timeout1;
 	}
 
 	public long getTimeout2() {
-		// TODO Auto-generated method stub
-		return 0;
+		return timeout2;
+	}
+
+	private static long asMillis(long duration, TimeUnit timeUnit) {
+		return (duration < 0 ? -1 : timeUnit.toMillis(duration));
 	}
 
 }